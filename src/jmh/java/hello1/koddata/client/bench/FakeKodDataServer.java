@@ -0,0 +1,371 @@
+package hello1.koddata.client.bench;
+
+import hello1.koddata.client.Protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32C;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+// In-process stand-in for a KodData server, good enough to drive the client's wire code in benchmarks.
+// Every command is answered with its own text. "download <bytes>;" answers with a 'K' 'D' file of that size
+// and "rows <n>;" with n untagged text frames, both followed by a short answer to the command itself.
+// Once deflate was negotiated, answers of 1 KB or more and downloads are sent compressed.
+// Chunked uploads are checked and acknowledged chunk by chunk, resumed downloads are sent from the asked offset.
+public class FakeKodDataServer implements Closeable {
+
+    private static final int SESSION_ID = 4242;
+    private static final int COMPRESSION_THRESHOLD = 1024;
+    private static final long RESUMED_FILE_SIZE = 32 << 20;
+
+    private final ServerSocketChannel serverChannel;
+    private final Thread acceptThread;
+    private volatile boolean running = true;
+
+    public FakeKodDataServer() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        acceptThread = new Thread(this::doAccept, "fake-kd-accept");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    public String getHost() {
+        return InetAddress.getLoopbackAddress().getHostAddress();
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        serverChannel.close();
+    }
+
+    private void doAccept() {
+        try {
+            while (running) {
+                SocketChannel client = serverChannel.accept();
+                client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                Thread session = new Thread(() -> serve(client), "fake-kd-session");
+                session.setDaemon(true);
+                session.start();
+            }
+        } catch (IOException e) {
+            if (running) e.printStackTrace();
+        }
+    }
+
+    private void serve(SocketChannel client) {
+        ByteBuffer in = ByteBuffer.allocate(1 << 20).flip();
+        ByteBuffer out = ByteBuffer.allocateDirect(1 << 20);
+
+        try (client) {
+            boolean deflate = (readLogin(client, in, out) & Protocol.CAP_DEFLATE) != 0;
+            while (running) {
+                byte mode = next(client, in, 1).get();
+                switch (mode) {
+                    case Protocol.MODE_TAGGED_COMMAND -> {
+                        long requestId = next(client, in, 8).getLong();
+                        int length = next(client, in, 4).getInt();
+                        String command = string(next(client, in, length), length);
+                        answer(client, out, command, requestId, deflate);
+                    }
+                    case Protocol.MODE_UPLOAD -> {
+                        int nameLength = next(client, in, 4).getInt();
+                        skip(client, in, nameLength);
+                        long size = Integer.toUnsignedLong(next(client, in, 4).getInt());
+                        skip(client, in, size);
+                        answer(client, out, "uploaded " + size, -1, deflate);
+                    }
+                    case Protocol.MODE_COMMAND -> {
+                        // untagged commands carry no length, the client sends one at a time so the rest of the read is the command
+                        if (!in.hasRemaining()) fill(client, in);
+                        String command = string(in, in.remaining());
+                        answer(client, out, command, -1, deflate);
+                    }
+                    case Protocol.MODE_DEFLATE_COMMAND -> {
+                        next(client, in, 8).getLong();
+                        ByteArrayOutputStream command = new ByteArrayOutputStream();
+                        inflateBlocks(client, in, command);
+                        answer(client, out, command.toString(StandardCharsets.UTF_8), -1, deflate);
+                    }
+                    case Protocol.MODE_DEFLATE_UPLOAD -> {
+                        int nameLength = next(client, in, 4).getInt();
+                        skip(client, in, nameLength);
+                        next(client, in, 8).getLong();
+                        long size = inflateBlocks(client, in, null);
+                        answer(client, out, "uploaded " + size, -1, deflate);
+                    }
+                    case Protocol.MODE_CHUNKED_UPLOAD -> {
+                        int nameLength = next(client, in, 4).getInt();
+                        byte[] name = new byte[nameLength];
+                        next(client, in, nameLength).get(name);
+                        next(client, in, 8).getLong();
+                        long offset = next(client, in, 8).getLong();
+                        boolean deflated = next(client, in, 1).get() == Protocol.CHUNK_FLAG_DEFLATE;
+                        long size = readChunks(client, in, out, name, offset, deflated);
+                        answer(client, out, "uploaded " + size, -1, deflate);
+                    }
+                    case Protocol.MODE_RESUME_DOWNLOAD -> {
+                        int nameLength = next(client, in, 4).getInt();
+                        byte[] name = new byte[nameLength];
+                        next(client, in, nameLength).get(name);
+                        long offset = next(client, in, 8).getLong();
+                        // the fake has no real files, every resumed download is RESUMED_FILE_SIZE bytes long
+                        out.clear();
+                        out.put(Protocol.FRAME_MARKER).put(Protocol.FRAME_FILE_RESUME).putInt(name.length).put(name)
+                                .putLong(RESUMED_FILE_SIZE).putLong(offset);
+                        out.flip();
+                        writeFully(client, out);
+                        writePayload(client, out, RESUMED_FILE_SIZE - offset);
+                    }
+                    default -> throw new IOException("unknown mode " + mode);
+                }
+            }
+        } catch (EOFException e) {
+            // client went away
+        } catch (IOException e) {
+            if (running) e.printStackTrace();
+        }
+    }
+
+    // Accepts every offered capability and returns them
+    private int readLogin(SocketChannel client, ByteBuffer in, ByteBuffer out) throws IOException {
+        next(client, in, 1).get(); // login mode
+        int usernameLength = next(client, in, 4).getInt();
+        skip(client, in, usernameLength);
+        int passwordLength = next(client, in, 4).getInt();
+        skip(client, in, passwordLength);
+        next(client, in, 8).getLong();
+
+        // the optional capability byte arrives in the same write as the rest of the login frame
+        int capabilities = 0;
+        out.clear();
+        if (in.hasRemaining()) {
+            capabilities = in.get() & 0xFF;
+            out.put(Protocol.LOGIN_OK_WITH_CAPABILITIES).putInt(SESSION_ID).put((byte) capabilities);
+        } else {
+            out.put((byte) 0).putInt(SESSION_ID);
+        }
+        out.flip();
+        writeFully(client, out);
+        return capabilities;
+    }
+
+    private void answer(SocketChannel client, ByteBuffer out, String command, long requestId, boolean deflate) throws IOException {
+        String trimmed = command.trim();
+
+        if (trimmed.startsWith("download ")) {
+            long size = Long.parseLong(trimmed.substring("download ".length(), trimmed.length() - 1).trim());
+            byte[] name = "bench.bin".getBytes(StandardCharsets.UTF_8);
+            if (deflate) {
+                byte[] payload = deflate(new byte[(int) size]);
+                out.clear();
+                out.put(Protocol.FRAME_MARKER).put(Protocol.FRAME_DEFLATE_FILE).putInt(name.length).put(name)
+                        .putInt((int) size).putInt(payload.length);
+                out.flip();
+                writeFully(client, out);
+                writeFully(client, ByteBuffer.wrap(payload));
+                answerText(client, out, "downloaded " + size, requestId, false);
+                return;
+            }
+            out.clear();
+            out.put(Protocol.FRAME_MARKER).put(Protocol.FRAME_FILE).putInt(name.length).put(name).putInt((int) size);
+            long remaining = size;
+            while (remaining > 0) {
+                int chunk = (int) Math.min(out.remaining(), remaining);
+                out.position(out.position() + chunk); // payload content does not matter
+                remaining -= chunk;
+                out.flip();
+                writeFully(client, out);
+                out.clear();
+            }
+            answerText(client, out, "downloaded " + size, requestId, false);
+            return;
+        }
+
+        if (trimmed.startsWith("rows ")) {
+            int rows = Integer.parseInt(trimmed.substring("rows ".length(), trimmed.length() - 1).trim());
+            out.clear();
+            for (int i = 0; i < rows; i++) {
+                byte[] row = ("row " + i + "\tvalue " + i).getBytes(StandardCharsets.UTF_8);
+                if (out.remaining() < 6 + row.length) {
+                    out.flip();
+                    writeFully(client, out);
+                    out.clear();
+                }
+                out.put(Protocol.FRAME_MARKER).put(Protocol.FRAME_TEXT).putInt(row.length).put(row);
+            }
+            out.flip();
+            writeFully(client, out);
+            answerText(client, out, rows + " rows", requestId, false);
+            return;
+        }
+
+        answerText(client, out, command, requestId, deflate);
+    }
+
+    private void answerText(SocketChannel client, ByteBuffer out, String text, long requestId, boolean deflate) throws IOException {
+        byte[] body = text.getBytes(StandardCharsets.UTF_8);
+        boolean compressed = deflate && body.length >= COMPRESSION_THRESHOLD;
+        byte[] payload = compressed ? deflate(body) : body;
+
+        out.clear();
+        if (requestId >= 0) {
+            out.put(Protocol.FRAME_MARKER).put(compressed ? Protocol.FRAME_DEFLATE_TAGGED_TEXT : Protocol.FRAME_TAGGED_TEXT).putLong(requestId);
+        } else {
+            out.put(Protocol.FRAME_MARKER).put(compressed ? Protocol.FRAME_DEFLATE_TEXT : Protocol.FRAME_TEXT);
+        }
+        out.putInt(body.length);
+        if (compressed) out.putInt(payload.length);
+        out.flip();
+        writeFully(client, out);
+        writeFully(client, ByteBuffer.wrap(payload));
+    }
+
+    // Checks every chunk against its checksum and acknowledges it, returns the bytes received from offset on
+    private static long readChunks(SocketChannel client, ByteBuffer in, ByteBuffer out, byte[] name, long offset,
+                                   boolean deflated) throws IOException {
+        Inflater inflater = new Inflater();
+        CRC32C checksum = new CRC32C();
+        long received = 0;
+        try {
+            while (true) {
+                int rawLength = next(client, in, 12).getInt();
+                int wireLength = in.getInt();
+                int expected = in.getInt();
+                if (rawLength == 0) break;
+
+                byte[] wire = new byte[wireLength];
+                for (int read = 0; read < wireLength; ) {
+                    if (!in.hasRemaining()) fill(client, in);
+                    int step = Math.min(in.remaining(), wireLength - read);
+                    in.get(wire, read, step);
+                    read += step;
+                }
+
+                byte[] raw = wire;
+                if (deflated) {
+                    raw = new byte[rawLength];
+                    inflater.reset();
+                    inflater.setInput(wire);
+                    if (inflater.inflate(raw) != rawLength) throw new IOException("short chunk");
+                }
+                checksum.reset();
+                checksum.update(raw);
+                if ((int) checksum.getValue() != expected) throw new IOException("chunk checksum mismatch");
+
+                received += rawLength;
+                out.clear();
+                out.put(Protocol.FRAME_MARKER).put(Protocol.FRAME_UPLOAD_ACK).putInt(name.length).put(name).putLong(offset + received);
+                out.flip();
+                writeFully(client, out);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Malformed deflate chunk", e);
+        } finally {
+            inflater.end();
+        }
+        return received;
+    }
+
+    private static void writePayload(SocketChannel client, ByteBuffer out, long count) throws IOException {
+        while (count > 0) {
+            out.clear();
+            int chunk = (int) Math.min(out.remaining(), count);
+            out.position(chunk); // payload content does not matter
+            out.flip();
+            writeFully(client, out);
+            count -= chunk;
+        }
+    }
+
+    private static byte[] deflate(byte[] data) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (DeflaterOutputStream stream = new DeflaterOutputStream(compressed, new Deflater(Deflater.BEST_SPEED))) {
+            stream.write(data);
+        }
+        return compressed.toByteArray();
+    }
+
+    // Reads blockLength(4) data blocks up to the empty one, returns the inflated size and keeps the bytes when asked to
+    private static long inflateBlocks(SocketChannel client, ByteBuffer in, ByteArrayOutputStream target) throws IOException {
+        Inflater inflater = new Inflater();
+        byte[] output = new byte[64 * 1024];
+        long total = 0;
+        try {
+            int blockLength;
+            while ((blockLength = next(client, in, 4).getInt()) > 0) {
+                while (blockLength > 0) {
+                    if (!in.hasRemaining()) fill(client, in);
+                    int step = Math.min(in.remaining(), blockLength);
+                    inflater.setInput(in.slice(in.position(), step));
+                    in.position(in.position() + step);
+                    blockLength -= step;
+
+                    int produced;
+                    while ((produced = inflater.inflate(output)) > 0) {
+                        total += produced;
+                        if (target != null) target.write(output, 0, produced);
+                    }
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Malformed deflate stream", e);
+        } finally {
+            inflater.end();
+        }
+        return total;
+    }
+
+    // Makes sure at least count bytes are readable in `in`, which is kept in read mode
+    private static ByteBuffer next(SocketChannel client, ByteBuffer in, int count) throws IOException {
+        while (in.remaining() < count) {
+            fill(client, in);
+        }
+        return in;
+    }
+
+    private static void fill(SocketChannel client, ByteBuffer in) throws IOException {
+        in.compact();
+        int read = client.read(in);
+        in.flip();
+        if (read < 0) throw new EOFException();
+    }
+
+    private static void skip(SocketChannel client, ByteBuffer in, long count) throws IOException {
+        while (count > 0) {
+            if (!in.hasRemaining()) fill(client, in);
+            int step = (int) Math.min(in.remaining(), count);
+            in.position(in.position() + step);
+            count -= step;
+        }
+    }
+
+    private static String string(ByteBuffer in, int length) {
+        String value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return value;
+    }
+
+    private static void writeFully(SocketChannel client, ByteBuffer out) throws IOException {
+        while (out.hasRemaining()) {
+            client.write(out);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package hello1.koddata.client.bench;
+
+import hello1.koddata.client.FileState;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+// Download receive and save: a file arriving in read buffer sized chunks, written to disk and moved into place
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileStateBenchmark {
+
+    @Param({"16777216"})
+    public int fileSize;
+
+    @Param({"65536", "1048576"})
+    public int chunkSize;
+
+    private ByteBuffer chunk;
+    private Path directory;
+    private int counter;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        chunk = ByteBuffer.allocateDirect(chunkSize);
+        directory = Files.createTempDirectory("kd-filestate-bench");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (var files = Files.list(directory)) {
+            for (Path file : files.toList()) {
+                Files.deleteIfExists(file);
+            }
+        }
+        Files.deleteIfExists(directory);
+    }
+
+    @Benchmark
+    public long receiveAndSave() throws IOException {
+        FileState state = new FileState(directory, "export-" + (counter++ % 4) + ".bin", fileSize);
+        while (!state.isComplete()) {
+            chunk.clear();
+            state.receive(chunk);
+        }
+        state.doSave();
+        return state.receivedBytes;
+    }
+}
@@ -0,0 +1,115 @@
+package hello1.koddata.client.bench;
+
+import hello1.koddata.client.FrameDecoder;
+import hello1.koddata.client.Protocol;
+import hello1.koddata.client.TextDecoder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+// Read path packet handling: one 1 MB read buffer full of text frames, fed to the decoder in socket sized slices
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FrameDecoderBenchmark {
+
+    @Param({"64", "4096"})
+    public int messageSize;
+
+    @Param({"1460", "65536"})
+    public int readSize;
+
+    private ByteBuffer wire;
+    private ByteBuffer readBuffer;
+    private FrameDecoder decoder;
+    private Blackhole blackhole;
+
+    @Setup
+    public void setup(Blackhole blackhole) {
+        this.blackhole = blackhole;
+
+        byte[] body = "x".repeat(messageSize).getBytes(StandardCharsets.UTF_8);
+        wire = ByteBuffer.allocateDirect(1 << 20);
+        while (wire.remaining() >= 6 + body.length) {
+            wire.put(Protocol.FRAME_MARKER).put(Protocol.FRAME_TEXT).putInt(body.length).put(body);
+        }
+        wire.flip();
+
+        readBuffer = ByteBuffer.allocateDirect(1 << 20);
+        decoder = new FrameDecoder(new FrameDecoder.Handler() {
+            private final TextDecoder text = new TextDecoder();
+
+            @Override
+            public void onLoginResponse(byte status, long sessionId, int capabilities) {
+            }
+
+            @Override
+            public void onTextStart(long length, long requestId) {
+            }
+
+            @Override
+            public void onTextData(ByteBuffer data) {
+                text.append(data);
+            }
+
+            @Override
+            public void onTextEnd() {
+                FrameDecoderBenchmark.this.blackhole.consume(text.finish());
+            }
+
+            @Override
+            public void onFileStart(String name, long size) {
+            }
+
+            @Override
+            public void onFileResume(String name, long size, long offset) {
+            }
+
+            @Override
+            public void onUploadAck(String name, long offset) {
+            }
+
+            @Override
+            public void onFileData(ByteBuffer data) {
+                data.position(data.limit());
+            }
+
+            @Override
+            public void onFileEnd() {
+            }
+        });
+    }
+
+    @Benchmark
+    public void decodeMegabyte() throws IOException {
+        ByteBuffer source = wire.duplicate();
+        while (source.hasRemaining()) {
+            // same shape as ServerService.doRead: read, flip, decode, compact
+            int chunk = Math.min(Math.min(readSize, source.remaining()), readBuffer.remaining());
+            ByteBuffer slice = source.slice(source.position(), chunk);
+            readBuffer.put(slice);
+            source.position(source.position() + chunk);
+
+            readBuffer.flip();
+            decoder.decode(readBuffer);
+            readBuffer.compact();
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package hello1.koddata.client.bench;
+
+import hello1.koddata.client.KodDataClient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+// Whole client path against the in-process fake server: login, framing, selector loop, response matching
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoundTripBenchmark {
+
+    @Param({"false", "true"})
+    public boolean pipelined;
+
+    private FakeKodDataServer server;
+    private KodDataClient client;
+    private Path downloads;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        server = new FakeKodDataServer();
+        downloads = Files.createTempDirectory("kd-roundtrip-bench");
+        client = new KodDataClient(server.getHost(), server.getPort(), "bench", "", -1, 4);
+        client.setDownloadDirectory(downloads);
+        if (pipelined) client.enablePipelining();
+        client.connect();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        client.close();
+        server.close();
+        try (var files = Files.list(downloads)) {
+            for (Path file : files.toList()) {
+                Files.deleteIfExists(file);
+            }
+        }
+        Files.deleteIfExists(downloads);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public String commandLatency() {
+        return client.submit("$x = 1;").join();
+    }
+
+    @Benchmark
+    @Threads(8)
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public String commandThroughput() {
+        return client.submit("$x = 1;").join();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public Object burstOf64() {
+        CompletableFuture<?>[] burst = new CompletableFuture<?>[64];
+        for (int i = 0; i < burst.length; i++) {
+            burst[i] = client.submit("$x = " + i + ";");
+        }
+        return CompletableFuture.allOf(burst).join();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public String download16Mb() {
+        return client.submit("download 16777216;").join();
+    }
+}
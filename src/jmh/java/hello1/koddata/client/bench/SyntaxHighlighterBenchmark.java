@@ -0,0 +1,59 @@
+package hello1.koddata.client.bench;
+
+import hello1.koddata.client.SyntaxHighlighter;
+import org.jline.utils.AttributedString;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// Cost of one highlight call: a cold buffer, and a keystroke appended to the buffer highlighted just before
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SyntaxHighlighterBenchmark {
+
+    @Param({"80", "4096", "65536"})
+    public int length;
+
+    private String script;
+    private String typed;
+    private SyntaxHighlighter incremental;
+
+    @Setup
+    public void setup() {
+        StringBuilder builder = new StringBuilder();
+        int i = 0;
+        while (builder.length() < length) {
+            builder.append("$sales_").append(i).append(" = load(\"data/part-").append(i).append(".csv\", 12.5);\n");
+            i++;
+        }
+        script = builder.substring(0, length);
+        typed = script + "x";
+        incremental = new SyntaxHighlighter();
+    }
+
+    @Benchmark
+    public AttributedString fullBuffer() {
+        return new SyntaxHighlighter().highlight(null, script);
+    }
+
+    @Benchmark
+    public AttributedString keystroke() {
+        // alternate so every call sees a one character edit at the end
+        incremental.highlight(null, script);
+        return incremental.highlight(null, typed);
+    }
+}
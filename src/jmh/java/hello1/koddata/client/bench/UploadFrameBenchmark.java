@@ -0,0 +1,105 @@
+package hello1.koddata.client.bench;
+
+import hello1.koddata.client.DeflateFrame;
+import hello1.koddata.client.FileUploadFrame;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+// Upload encoding as done by TerminalService.doFlush, plain and deflated, written into a channel that discards everything
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UploadFrameBenchmark {
+
+    @Param({"1048576", "67108864"})
+    public int fileSize;
+
+    private Path file;
+    private final CountingChannel sink = new CountingChannel();
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        file = Files.createTempFile("kd-upload-bench", ".csv");
+        byte[] line = "1,alpha,2.5,\"quoted, value\"\n".getBytes(StandardCharsets.UTF_8);
+        ByteBuffer content = ByteBuffer.allocate(fileSize);
+        while (content.hasRemaining()) {
+            content.put(line, 0, Math.min(line.length, content.remaining()));
+        }
+        Files.write(file, content.array());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public long uploadFrame() throws IOException {
+        FileUploadFrame frame = new FileUploadFrame(file);
+        try {
+            while (!frame.writeTo(sink)) {
+                // the sink never fills up
+            }
+        } finally {
+            frame.release();
+        }
+        return sink.written;
+    }
+
+    @Benchmark
+    public long deflateUploadFrame() throws IOException {
+        DeflateFrame frame = DeflateFrame.upload(file);
+        try {
+            while (!frame.writeTo(sink)) {
+                // the sink never fills up
+            }
+        } finally {
+            frame.release();
+        }
+        return sink.written;
+    }
+
+    private static final class CountingChannel implements WritableByteChannel {
+
+        long written;
+
+        @Override
+        public int write(ByteBuffer src) {
+            int count = src.remaining();
+            src.position(src.limit());
+            written += count;
+            return count;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package hello1.koddata.client;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+// Writes a file through two buffers, one is filled while the other is written by an AsynchronousFileChannel.
+// The caller only waits when it filled a buffer before the disk finished the previous one, so a fast producer
+// runs at disk speed and a slow one never waits at all. Memory stays at two buffers whatever the file size.
+public class AsyncFileWriter {
+
+    private AsynchronousFileChannel channel;
+    private ByteBuffer filling;
+    private ByteBuffer writing;
+    private Future<Integer> pending;
+
+    // file offset the writing buffer goes to, and of the first byte in the filling buffer
+    private long writeOffset = 0;
+    private long fillOffset = 0;
+
+    public AsyncFileWriter(Path path, int bufferSize) throws IOException {
+        this.channel = open(path);
+        // direct, the channel would copy a heap buffer into one for every write
+        this.filling = ByteBuffer.allocateDirect(bufferSize);
+        this.writing = ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    // Starts another file with the same buffers, after close(). Direct buffers are only freed by the GC,
+    // so a writer that goes through many files should not allocate new ones for each.
+    public void reopen(Path path) throws IOException {
+        if (channel.isOpen()) throw new IllegalStateException("the current file is not closed");
+        channel = open(path);
+        filling.clear();
+        writing.clear();
+        pending = null;
+        writeOffset = 0;
+        fillOffset = 0;
+    }
+
+    private static AsynchronousFileChannel open(Path path) throws IOException {
+        Path parent = path.toAbsolutePath().getParent();
+        if (parent != null) Files.createDirectories(parent);
+        return AsynchronousFileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    // Bytes written so far, including those still buffered
+    public long position() {
+        return fillOffset + filling.position();
+    }
+
+    public void write(byte b) throws IOException {
+        if (!filling.hasRemaining()) swap();
+        filling.put(b);
+    }
+
+    public void write(byte[] src, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (!filling.hasRemaining()) swap();
+            int n = Math.min(length, filling.remaining());
+            filling.put(src, offset, n);
+            offset += n;
+            length -= n;
+        }
+    }
+
+    public void writeInt(int value) throws IOException {
+        if (filling.remaining() < 4) swap();
+        filling.putInt(value);
+    }
+
+    // Unsigned LEB128, seven bits per byte with the high bit set on all but the last
+    public void writeVarLong(long value) throws IOException {
+        if (filling.remaining() < 10) swap();
+        while ((value & ~0x7FL) != 0) {
+            filling.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        filling.put((byte) value);
+    }
+
+    // Writes what is buffered and closes the file, the data is on disk when this returns
+    public void close() throws IOException {
+        try {
+            swap();
+            awaitPending();
+            channel.force(false);
+        } finally {
+            channel.close();
+        }
+    }
+
+    // Closes without waiting for the data, for a file that is given up on
+    public void abort() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Hands the filled buffer to the channel once the previous write is done
+    private void swap() throws IOException {
+        awaitPending();
+        ByteBuffer full = filling;
+        filling = writing;
+        writing = full;
+        filling.clear();
+
+        writing.flip();
+        fillOffset += writing.remaining();
+        if (writing.hasRemaining()) {
+            pending = channel.write(writing, writeOffset);
+        }
+    }
+
+    private void awaitPending() throws IOException {
+        while (pending != null) {
+            int written;
+            try {
+                written = pending.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while writing");
+            } catch (ExecutionException e) {
+                pending = null;
+                throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+            }
+            writeOffset += written;
+            // a write may take only part of the buffer, the rest goes out before the buffer is reused
+            pending = writing.hasRemaining() ? channel.write(writing, writeOffset) : null;
+        }
+    }
+}
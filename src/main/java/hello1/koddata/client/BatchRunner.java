@@ -0,0 +1,94 @@
+package hello1.koddata.client;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+// Headless execution of a script: statements are streamed to the server with a bounded number in flight
+// and the responses are written to out in statement order.
+public class BatchRunner {
+
+    private final KodDataClient client;
+    private final Writer out;
+    private final int maxInFlight;
+
+    private final ArrayDeque<CompletableFuture<String>> inFlight = new ArrayDeque<>();
+    private int failures = 0;
+
+    public BatchRunner(KodDataClient client, Writer out, int maxInFlight) {
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("maxInFlight must be positive");
+        }
+        this.client = client;
+        this.out = out;
+        this.maxInFlight = maxInFlight;
+    }
+
+    // Runs the whole script and returns the number of statements that failed
+    public int run(Reader script) throws IOException, InterruptedException {
+        execute(new StatementReader(script));
+        while (!inFlight.isEmpty()) {
+            writeNext();
+        }
+        out.flush();
+        return failures;
+    }
+
+    private void execute(StatementReader statements) throws IOException, InterruptedException {
+        String statement;
+        while ((statement = statements.next()) != null) {
+            String lower = statement.toLowerCase(Locale.ROOT);
+
+            if (lower.startsWith("consult ")) {
+                // nested scripts are streamed the same way instead of being sent as one frame
+                Path path = Path.of(statement.substring("consult".length(), statement.length() - 1).trim());
+                try (Reader nested = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+                    execute(new StatementReader(nested));
+                } catch (IOException e) {
+                    System.err.println("Failed to read file: " + path + " (" + e.getMessage() + ")");
+                    failures++;
+                }
+                continue;
+            }
+            if (lower.startsWith("upload ")) {
+                System.err.println("upload is not supported in batch mode: " + statement);
+                failures++;
+                continue;
+            }
+
+            while (inFlight.size() >= maxInFlight) {
+                writeNext();
+            }
+            inFlight.add(client.submit(statement));
+
+            // write whatever already came back without waiting
+            while (!inFlight.isEmpty() && inFlight.peek().isDone()) {
+                writeNext();
+            }
+        }
+    }
+
+    private void writeNext() throws IOException, InterruptedException {
+        CompletableFuture<String> next = inFlight.peek();
+        if (!next.isDone()) {
+            out.flush(); // let readers of the output see progress while we wait
+        }
+
+        try {
+            String response = next.get();
+            out.write(response);
+            if (!response.endsWith("\n")) out.write('\n');
+        } catch (ExecutionException e) {
+            System.err.println("Command failed: " + e.getCause().getMessage());
+            failures++;
+        }
+        inFlight.poll();
+    }
+}
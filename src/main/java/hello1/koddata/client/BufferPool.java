@@ -0,0 +1,64 @@
+package hello1.koddata.client;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+// Direct buffers for outbound frames, recycled instead of allocating a fresh array per command.
+// Sizes are powers of two from 256 bytes to 64 KB, each size keeps at most MAX_POOLED_PER_CLASS free buffers.
+// Larger requests get a plain heap buffer that is left to the GC.
+public class BufferPool {
+
+    private static final int MIN_SHIFT = 8;
+    private static final int MAX_SHIFT = 16;
+    private static final int MAX_POOLED_PER_CLASS = 64;
+
+    private static final BufferPool SHARED = new BufferPool();
+
+    private final ConcurrentLinkedQueue<ByteBuffer>[] free;
+    private final AtomicIntegerArray freeCounts;
+
+    @SuppressWarnings({"unchecked", "rawtypes"}) // no generic array creation in Java
+    public BufferPool() {
+        int classes = MAX_SHIFT - MIN_SHIFT + 1;
+        free = new ConcurrentLinkedQueue[classes];
+        for (int i = 0; i < classes; i++) {
+            free[i] = new ConcurrentLinkedQueue<>();
+        }
+        freeCounts = new AtomicIntegerArray(classes);
+    }
+
+    // One pool for the process, buffers move freely between connections
+    public static BufferPool shared() {
+        return SHARED;
+    }
+
+    // A cleared buffer of at least capacity bytes
+    public ByteBuffer acquire(int capacity) {
+        if (capacity > 1 << MAX_SHIFT) {
+            return ByteBuffer.allocate(capacity);
+        }
+        int sizeClass = sizeClass(capacity);
+        ByteBuffer buffer = free[sizeClass].poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(1 << (sizeClass + MIN_SHIFT));
+        }
+        freeCounts.decrementAndGet(sizeClass);
+        return buffer.clear();
+    }
+
+    // The caller must not touch the buffer afterwards
+    public void release(ByteBuffer buffer) {
+        if (!buffer.isDirect()) return;
+        int sizeClass = Integer.numberOfTrailingZeros(buffer.capacity()) - MIN_SHIFT;
+        if (freeCounts.incrementAndGet(sizeClass) > MAX_POOLED_PER_CLASS) {
+            freeCounts.decrementAndGet(sizeClass);
+            return;
+        }
+        free[sizeClass].offer(buffer);
+    }
+
+    static int sizeClass(int capacity) {
+        return Math.max(0, 32 - Integer.numberOfLeadingZeros(Math.max(1, capacity) - 1) - MIN_SHIFT);
+    }
+}
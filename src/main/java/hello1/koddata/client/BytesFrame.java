@@ -0,0 +1,54 @@
+package hello1.koddata.client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+public class BytesFrame implements OutboundFrame {
+
+    private final ByteBuffer buffer;
+    // null for frames over a plain array
+    private final BufferPool pool;
+    private boolean released = false;
+
+    public BytesFrame(byte[] data) {
+        this.buffer = ByteBuffer.wrap(data);
+        this.pool = null;
+    }
+
+    // buffer is ready to be written and goes back to pool on release
+    public BytesFrame(ByteBuffer buffer, BufferPool pool) {
+        this.buffer = buffer;
+        this.pool = pool;
+    }
+
+    @Override
+    public boolean writeTo(WritableByteChannel channel) throws IOException {
+        channel.write(buffer);
+        return !buffer.hasRemaining();
+    }
+
+    @Override
+    public long size() {
+        return buffer.limit();
+    }
+
+    @Override
+    public void release() {
+        if (pool != null && !released) {
+            released = true;
+            pool.release(buffer);
+        }
+    }
+
+    @Override
+    public boolean rewind() {
+        buffer.rewind();
+        return true;
+    }
+
+    @Override
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+}
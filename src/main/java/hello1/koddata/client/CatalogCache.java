@@ -0,0 +1,135 @@
+package hello1.koddata.client;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// The commands, variables and datasets the server knows, kept so completion and highlighting never wait for it.
+// The first refresh fetches everything, later ones only the changes since the version held, and a refresh only
+// happens after a command that may have changed something. Lookups use what is there until the answer arrives.
+public class CatalogCache {
+
+    // names the shell handles itself, offered whether or not the server has a catalog
+    private static final List<String> BUILTIN_COMMANDS = List.of(
+            "upload", "consult", "exit", "\\stats", "\\cache", "\\more", "\\head", "\\tail", "\\catalog");
+
+    private final PrefixTrie builtins = new PrefixTrie();
+    private final PrefixTrie commands = new PrefixTrie();
+    private final PrefixTrie variables = new PrefixTrie();
+    private final PrefixTrie datasets = new PrefixTrie();
+
+    private long version = 0;
+    private boolean loaded = false;
+
+    private volatile ServerService source;
+    private volatile boolean stale = true;
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+
+    public CatalogCache() {
+        for (String command : BUILTIN_COMMANDS) {
+            builtins.add(command);
+        }
+    }
+
+    public void setSource(ServerService source) {
+        this.source = source;
+    }
+
+    // Called after anything that may have created or dropped a name, the next lookup starts a refresh
+    public void markStale() {
+        stale = true;
+    }
+
+    // Drops the version held, the next refresh fetches everything
+    public synchronized void reload() {
+        version = 0;
+        stale = true;
+    }
+
+    // Starts a refresh if one is due, cheap enough to call on every keystroke
+    public void refreshIfStale() {
+        ServerService service = source;
+        if (!stale || service == null || !service.hasCatalog() || !refreshing.compareAndSet(false, true)) return;
+        stale = false;
+
+        long since;
+        synchronized (this) {
+            since = version;
+        }
+        service.fetchCatalog(since).whenComplete((answer, error) -> {
+            if (error != null || !apply(answer)) stale = true; // tried again on the next lookup
+            refreshing.set(false);
+        });
+    }
+
+    // False if the answer was not understood, the catalog is left as it was then
+    synchronized boolean apply(String answer) {
+        String[] lines = answer.split("\n");
+        String[] header = lines[0].trim().split(" ");
+        if (header.length != 2 || !(header[0].equals("full") || header[0].equals("delta"))) return false;
+        long newVersion;
+        try {
+            newVersion = Long.parseLong(header[1]);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+
+        if (header[0].equals("full")) {
+            commands.clear();
+            variables.clear();
+            datasets.clear();
+        }
+        for (int i = 1; i < lines.length; i++) {
+            String line = lines[i].trim();
+            int space = line.indexOf(' ');
+            if (line.length() < 2 || space < 0) continue;
+
+            PrefixTrie names = switch (line.substring(1, space)) {
+                case "command" -> commands;
+                case "variable" -> variables;
+                case "dataset" -> datasets;
+                default -> null; // kinds this client does not know yet
+            };
+            if (names == null) continue;
+            String name = line.substring(space + 1).trim();
+            if (line.charAt(0) == '+') names.add(name);
+            else if (line.charAt(0) == '-') names.remove(name);
+        }
+        version = newVersion;
+        loaded = true;
+        return true;
+    }
+
+    public synchronized boolean isLoaded() {
+        return loaded;
+    }
+
+    // Whether text[start, end) names a variable the server knows, without the '$'
+    public synchronized boolean hasVariable(CharSequence text, int start, int end) {
+        return variables.contains(text, start, end);
+    }
+
+    public synchronized void completeCommands(String prefix, int limit, List<String> out) {
+        int start = out.size();
+        builtins.collect(prefix, limit, out);
+        int builtinEnd = out.size();
+        commands.collect(prefix, limit - (builtinEnd - start), out);
+        out.subList(builtinEnd, out.size()).removeIf(builtins::contains);
+    }
+
+    public synchronized void completeVariables(String prefix, int limit, List<String> out) {
+        variables.collect(prefix, limit, out);
+    }
+
+    public synchronized void completeDatasets(String prefix, int limit, List<String> out) {
+        datasets.collect(prefix, limit, out);
+    }
+
+    public synchronized String getReport() {
+        if (!loaded) {
+            ServerService service = source;
+            return service != null && service.hasCatalog() ? "Catalog: not loaded yet" : "Catalog: the server offers none";
+        }
+        return String.format("Catalog: version %d, %d commands, %d variables, %d datasets",
+                version, commands.size(), variables.size(), datasets.size());
+    }
+}
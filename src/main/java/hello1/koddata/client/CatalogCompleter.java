@@ -0,0 +1,46 @@
+package hello1.koddata.client;
+
+import org.jline.reader.Candidate;
+import org.jline.reader.Completer;
+import org.jline.reader.LineReader;
+import org.jline.reader.ParsedLine;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Tab completion from the CatalogCache: commands for the first word, variables after a '$', datasets elsewhere
+public class CatalogCompleter implements Completer {
+
+    // more than a screen of candidates is no help, type another character instead
+    private static final int MAX_CANDIDATES = 256;
+
+    private final CatalogCache catalog;
+
+    public CatalogCompleter(CatalogCache catalog) {
+        this.catalog = catalog;
+    }
+
+    @Override
+    public void complete(LineReader reader, ParsedLine line, List<Candidate> candidates) {
+        catalog.refreshIfStale();
+
+        String word = line.word().substring(0, line.wordCursor());
+        List<String> names = new ArrayList<>();
+        if (word.startsWith("$")) {
+            catalog.completeVariables(word.substring(1), MAX_CANDIDATES, names);
+            for (String name : names) {
+                candidates.add(new Candidate("$" + name));
+            }
+            return;
+        }
+
+        if (line.wordIndex() == 0) {
+            catalog.completeCommands(word, MAX_CANDIDATES, names);
+        } else {
+            catalog.completeDatasets(word, MAX_CANDIDATES, names);
+        }
+        for (String name : names) {
+            candidates.add(new Candidate(name));
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package hello1.koddata.client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+import java.util.zip.Deflater;
+
+// Resumable upload: the file goes out in checksummed chunks from the last acknowledged offset on and the server
+// acknowledges every chunk it stored. Chunks are deflated one by one when CHUNK_FLAG_DEFLATE is set, so each chunk can be decoded on its own
+// and a resumed upload never depends on what was sent before.
+public class ChunkedUploadFrame implements OutboundFrame {
+
+    public static final int CHUNK_SIZE = 1 << 20;
+    private static final int CHUNK_HEADER_SIZE = 4 + 4 + 4;
+
+    private final String filename;
+    private final TransferState state;
+    private final FileChannel fileChannel;
+    private final ByteBuffer header;
+    private final long size;
+    private final Deflater deflater;
+
+    private final ByteBuffer raw = ByteBuffer.allocate(CHUNK_SIZE);
+    private final ByteBuffer wire;
+    private final CRC32C checksum = new CRC32C();
+
+    private long position;
+    private boolean done = false;
+    private long written = 0;
+
+    // Starts at the offset the server acknowledged last, which the state keeps up to date
+    public ChunkedUploadFrame(Path path, TransferState state, boolean deflate) throws IOException {
+        this.filename = path.getFileName().toString();
+        this.state = state;
+        this.fileChannel = FileChannel.open(path, StandardOpenOption.READ);
+        this.size = fileChannel.size();
+        this.position = state.offset;
+        state.sending = true;
+        this.deflater = deflate ? new Deflater(Deflater.BEST_SPEED) : null;
+        // deflate can grow incompressible data a little, leave room for that
+        this.wire = ByteBuffer.allocate(CHUNK_HEADER_SIZE + CHUNK_SIZE + CHUNK_SIZE / 1000 + 64);
+        wire.flip();
+
+        byte[] filenameBytes = filename.getBytes(StandardCharsets.UTF_8);
+        this.header = ByteBuffer.allocate(1 + 4 + filenameBytes.length + 8 + 8 + 1);
+        header.put(Protocol.MODE_CHUNKED_UPLOAD);
+        header.putInt(filenameBytes.length);
+        header.put(filenameBytes);
+        header.putLong(size);
+        header.putLong(position);
+        header.put(deflate ? Protocol.CHUNK_FLAG_DEFLATE : 0);
+        header.flip();
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    @Override
+    public boolean writeTo(WritableByteChannel channel) throws IOException {
+        if (header.hasRemaining()) {
+            written += channel.write(header);
+            if (header.hasRemaining()) return false;
+        }
+
+        while (true) {
+            if (wire.hasRemaining()) {
+                written += channel.write(wire);
+                if (wire.hasRemaining()) return false;
+            }
+            if (done) return true;
+            nextChunk();
+        }
+    }
+
+    // rawLength(4) wireLength(4) crc32c(4) data, a rawLength of 0 ends the frame
+    private void nextChunk() throws IOException {
+        wire.clear();
+
+        if (position >= size) {
+            wire.putInt(0).putInt(0).putInt(0).flip();
+            done = true;
+            return;
+        }
+
+        raw.clear();
+        raw.limit((int) Math.min(CHUNK_SIZE, size - position));
+        while (raw.hasRemaining()) {
+            if (fileChannel.read(raw, position + raw.position()) < 0) {
+                throw new IOException("file " + filename + " shrank during upload");
+            }
+        }
+        raw.flip();
+        int rawLength = raw.remaining();
+
+        checksum.reset();
+        checksum.update(raw.duplicate());
+
+        wire.position(CHUNK_HEADER_SIZE);
+        if (deflater != null) {
+            deflater.reset();
+            deflater.setInput(raw);
+            deflater.finish();
+            while (!deflater.finished()) {
+                if (deflater.deflate(wire) == 0 && !wire.hasRemaining()) {
+                    throw new IOException("chunk of " + filename + " does not fit its buffer after deflate");
+                }
+            }
+        } else {
+            wire.put(raw);
+        }
+
+        wire.putInt(0, rawLength);
+        wire.putInt(4, wire.position() - CHUNK_HEADER_SIZE);
+        wire.putInt(8, (int) checksum.getValue());
+        wire.flip();
+        position += rawLength;
+    }
+
+    // Continues from the last acknowledged chunk, everything after it may not have reached the server
+    @Override
+    public boolean rewind() {
+        position = state.offset;
+        header.putLong(header.limit() - 1 - 8, position);
+        header.rewind();
+        wire.clear().flip();
+        done = false;
+        written = 0;
+        return true;
+    }
+
+    @Override
+    public long size() {
+        return written;
+    }
+
+    @Override
+    public long written() {
+        return written;
+    }
+
+    @Override
+    public void release() {
+        state.sending = false;
+        if (deflater != null) deflater.end();
+        try {
+            fileChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package hello1.koddata.client;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Counters and latency histograms for the transport and terminal paths. Updates are lock free so they can sit
+// on the read and send threads. Latencies are recorded in nanoseconds.
+public class ClientMetrics implements ClientMetricsMBean {
+
+    public final LongAdder bytesIn = new LongAdder();
+    public final LongAdder bytesOut = new LongAdder();
+    public final LongAdder framesIn = new LongAdder();
+    public final LongAdder framesOut = new LongAdder();
+    public final LongAdder sendQueueDepth = new LongAdder();
+    // bytes held by queued frames, see SendBudget
+    public final LongAdder sendQueueBytes = new LongAdder();
+    // frames the send budget refused
+    public final LongAdder rejectedFrames = new LongAdder();
+
+    // submit() until its response arrived
+    public final LatencyHistogram requestLatency = new LatencyHistogram();
+    // first unanswered send until the next frame from the server, covers commands typed in the shell
+    public final LatencyHistogram firstResponseLatency = new LatencyHistogram();
+    // one printAbove call of the terminal
+    public final LatencyHistogram renderLatency = new LatencyHistogram();
+    public final LongAdder renderedMessages = new LongAdder();
+
+    public final LongAdder downloadedFiles = new LongAdder();
+    public final LongAdder downloadedBytes = new LongAdder();
+    public final LongAdder downloadNanos = new LongAdder();
+
+    private final AtomicLong awaitingResponseSince = new AtomicLong();
+
+    public void onSend() {
+        awaitingResponseSince.compareAndSet(0, System.nanoTime());
+    }
+
+    public void onResponseFrame() {
+        framesIn.increment();
+        long since = awaitingResponseSince.getAndSet(0);
+        if (since != 0) {
+            firstResponseLatency.record(System.nanoTime() - since);
+        }
+    }
+
+    public void onDownload(long bytes, long nanos) {
+        downloadedFiles.increment();
+        downloadedBytes.add(bytes);
+        downloadNanos.add(nanos);
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getFramesIn() {
+        return framesIn.sum();
+    }
+
+    @Override
+    public long getFramesOut() {
+        return framesOut.sum();
+    }
+
+    @Override
+    public long getSendQueueDepth() {
+        return sendQueueDepth.sum();
+    }
+
+    @Override
+    public long getSendQueueBytes() {
+        return sendQueueBytes.sum();
+    }
+
+    @Override
+    public long getRejectedFrames() {
+        return rejectedFrames.sum();
+    }
+
+    @Override
+    public long getRequestCount() {
+        return requestLatency.getCount();
+    }
+
+    @Override
+    public long getRequestP50Micros() {
+        return requestLatency.getPercentile(50) / 1000;
+    }
+
+    @Override
+    public long getRequestP99Micros() {
+        return requestLatency.getPercentile(99) / 1000;
+    }
+
+    @Override
+    public long getRequestP999Micros() {
+        return requestLatency.getPercentile(99.9) / 1000;
+    }
+
+    @Override
+    public long getFirstResponseP50Micros() {
+        return firstResponseLatency.getPercentile(50) / 1000;
+    }
+
+    @Override
+    public long getFirstResponseP99Micros() {
+        return firstResponseLatency.getPercentile(99) / 1000;
+    }
+
+    @Override
+    public long getRenderP99Micros() {
+        return renderLatency.getPercentile(99) / 1000;
+    }
+
+    @Override
+    public long getDownloadedFiles() {
+        return downloadedFiles.sum();
+    }
+
+    @Override
+    public long getDownloadBytesPerSecond() {
+        long nanos = downloadNanos.sum();
+        return nanos == 0 ? 0 : (long) (downloadedBytes.sum() * 1e9 / nanos);
+    }
+
+    @Override
+    public String getReport() {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("network         in %s in %d frames, out %s in %d frames, send queue %d (%s), %d refused%n",
+                formatBytes(getBytesIn()), getFramesIn(), formatBytes(getBytesOut()), getFramesOut(), getSendQueueDepth(),
+                formatBytes(getSendQueueBytes()), getRejectedFrames()));
+        report.append("requests        ").append(formatLatency(requestLatency)).append('\n');
+        report.append("first response  ").append(formatLatency(firstResponseLatency)).append('\n');
+        report.append("render          ").append(formatLatency(renderLatency))
+                .append(", ").append(renderedMessages.sum()).append(" messages").append('\n');
+        report.append(String.format("downloads       %d files, %s at %s/s",
+                getDownloadedFiles(), formatBytes(downloadedBytes.sum()), formatBytes(getDownloadBytesPerSecond())));
+        return report.toString();
+    }
+
+    @Override
+    public void reset() {
+        bytesIn.reset();
+        bytesOut.reset();
+        framesIn.reset();
+        framesOut.reset();
+        rejectedFrames.reset();
+        requestLatency.reset();
+        firstResponseLatency.reset();
+        renderLatency.reset();
+        renderedMessages.reset();
+        downloadedFiles.reset();
+        downloadedBytes.reset();
+        downloadNanos.reset();
+    }
+
+    public void registerMBean() throws JMException {
+        ManagementFactory.getPlatformMBeanServer()
+                .registerMBean(this, new ObjectName("hello1.koddata.client:type=ClientMetrics"));
+    }
+
+    // Appends the report to file every interval on a virtual thread, which does not keep the process alive
+    public ScheduledExecutorService startPeriodicDump(Path file, long intervalSeconds) {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+                Thread.ofVirtual().name("kd-stats-dump").factory());
+        executor.scheduleAtFixedRate(() -> {
+            String entry = "== " + Instant.now() + System.lineSeparator() + getReport() + System.lineSeparator();
+            try {
+                Files.writeString(file, entry, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        return executor;
+    }
+
+    public static String formatLatency(LatencyHistogram histogram) {
+        if (histogram.getCount() == 0) return "no samples";
+        return String.format("n=%d p50 %s p99 %s p99.9 %s max %s",
+                histogram.getCount(),
+                formatNanos(histogram.getPercentile(50)),
+                formatNanos(histogram.getPercentile(99)),
+                formatNanos(histogram.getPercentile(99.9)),
+                formatNanos(histogram.getMax()));
+    }
+
+    public static String formatNanos(long nanos) {
+        if (nanos < 1_000) return nanos + " ns";
+        if (nanos < 1_000_000) return String.format("%.1f us", nanos / 1e3);
+        if (nanos < 1_000_000_000) return String.format("%.1f ms", nanos / 1e6);
+        return String.format("%.2f s", nanos / 1e9);
+    }
+
+    public static String formatBytes(long bytes) {
+        if (bytes < 1024) return bytes + " B";
+        if (bytes < 1024 * 1024) return String.format("%.1f KB", bytes / 1024.0);
+        if (bytes < 1024L * 1024 * 1024) return String.format("%.1f MB", bytes / (1024.0 * 1024));
+        return String.format("%.2f GB", bytes / (1024.0 * 1024 * 1024));
+    }
+}
@@ -0,0 +1,41 @@
+package hello1.koddata.client;
+
+// JMX view of ClientMetrics, latencies in microseconds
+public interface ClientMetricsMBean {
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getFramesIn();
+
+    long getFramesOut();
+
+    long getSendQueueDepth();
+
+    long getSendQueueBytes();
+
+    long getRejectedFrames();
+
+    long getRequestCount();
+
+    long getRequestP50Micros();
+
+    long getRequestP99Micros();
+
+    long getRequestP999Micros();
+
+    long getFirstResponseP50Micros();
+
+    long getFirstResponseP99Micros();
+
+    long getRenderP99Micros();
+
+    long getDownloadedFiles();
+
+    long getDownloadBytesPerSecond();
+
+    String getReport();
+
+    void reset();
+}
@@ -0,0 +1,301 @@
+package hello1.koddata.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+// Commands waiting for the server, kept on disk so they survive a slow server, a lost connection and a restart.
+// Commands are appended to memory-mapped segment files as length(4) crc32c(4) UTF-8 text, a length of 0 marks the
+// end of what was written. A checkpoint file holds the position up to which the server answered, segments before it
+// are deleted. After a crash everything from the checkpoint on is sent again, so a command may run twice.
+public class CommandSpool {
+
+    private static final int SEGMENT_SIZE = 64 << 20;
+    private static final int RECORD_HEADER_SIZE = 4 + 4;
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String CHECKPOINT = "acked";
+    private static final int MAGIC = 0x4B445350; // "KDSP"
+    private static final int VERSION = 1;
+
+    private final Path directory;
+    private final CRC32C checksum = new CRC32C();
+
+    // a ReentrantLock rather than synchronized, a virtual thread waiting on it gives its carrier back
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition appended = lock.newCondition();
+
+    private long writeSegment;
+    private MappedByteBuffer writeBuffer;
+    private boolean dirty = false;
+
+    private long readSegment;
+    private int readOffset;
+    private MappedByteBuffer readBuffer;
+
+    private long ackedSegment;
+    private int ackedOffset;
+    // end positions of the commands handed out by next() and not acknowledged yet, segment and offset
+    private final ArrayDeque<long[]> unacked = new ArrayDeque<>();
+
+    private long waiting;
+    private boolean closed = false;
+
+    private CommandSpool(Path directory) {
+        this.directory = directory;
+    }
+
+    // Opens the spool in directory, creating it if needed, and finds the commands a previous run left unanswered
+    public static CommandSpool open(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        CommandSpool spool = new CommandSpool(directory);
+        spool.recover();
+        return spool;
+    }
+
+    private void recover() throws IOException {
+        readCheckpoint();
+
+        List<Long> segments = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                if (!name.endsWith(SEGMENT_SUFFIX)) continue;
+                try {
+                    segments.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    // not ours
+                }
+            }
+        }
+        segments.sort(null);
+
+        for (long segment : segments) {
+            if (segment < ackedSegment) Files.deleteIfExists(segmentPath(segment));
+        }
+        if (segments.isEmpty() || segments.get(segments.size() - 1) < ackedSegment) {
+            ackedSegment = Math.max(ackedSegment, segments.isEmpty() ? 0 : segments.get(segments.size() - 1) + 1);
+            ackedOffset = 0;
+        }
+
+        // count what is left, the end of the last segment is where appending goes on
+        readSegment = ackedSegment;
+        readOffset = ackedOffset;
+        readBuffer = map(readSegment);
+        while (true) {
+            int length = validRecordAt(readBuffer, readOffset);
+            if (length > 0) {
+                readOffset += RECORD_HEADER_SIZE + length;
+                waiting++;
+            } else if (Files.exists(segmentPath(readSegment + 1))) {
+                readSegment++;
+                readOffset = 0;
+                readBuffer = map(readSegment);
+            } else {
+                break;
+            }
+        }
+
+        // a record torn by a crash is dropped, and anything after it cleared so it cannot pass for a new one
+        for (int i = readOffset; i < SEGMENT_SIZE; i++) {
+            if (readBuffer.get(i) != 0) readBuffer.put(i, (byte) 0);
+        }
+        writeSegment = readSegment;
+        writeBuffer = readBuffer;
+        writeBuffer.position(readOffset);
+
+        readSegment = ackedSegment;
+        readOffset = ackedOffset;
+        readBuffer = map(readSegment);
+    }
+
+    // Appends a command, it is in the page cache when this returns and survives the process dying.
+    // It is on disk after the next force().
+    public void append(String command) throws IOException {
+        byte[] bytes = command.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length == 0 || RECORD_HEADER_SIZE + bytes.length > SEGMENT_SIZE - 4) {
+            throw new IOException("command of " + bytes.length + " bytes cannot be spooled");
+        }
+
+        lock.lock();
+        try {
+            if (closed) throw new IOException("spool is closed");
+            if (writeBuffer.remaining() < RECORD_HEADER_SIZE + bytes.length + 4) {
+                // the rest of the segment stays zero, readers move on to the next one
+                writeSegment++;
+                writeBuffer = map(writeSegment);
+            }
+
+            int start = writeBuffer.position();
+            checksum.reset();
+            checksum.update(bytes);
+            writeBuffer.position(start + 4);
+            writeBuffer.putInt((int) checksum.getValue());
+            writeBuffer.put(bytes);
+            // the length goes in last, until then the record reads as the end of the segment
+            writeBuffer.putInt(start, bytes.length);
+            dirty = true;
+            waiting++;
+            appended.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Up to max commands after the ones already handed out, waits up to timeout for the first one.
+    // An empty list means there was nothing to send.
+    public List<String> next(int max, long timeout, TimeUnit unit) throws InterruptedException, IOException {
+        List<String> commands = new ArrayList<>();
+        long remaining = unit.toNanos(timeout);
+        lock.lock();
+        try {
+            while (commands.size() < max && !closed) {
+                int length = validRecordAt(readBuffer, readOffset);
+                if (length > 0) {
+                    byte[] bytes = new byte[length];
+                    readBuffer.get(readOffset + RECORD_HEADER_SIZE, bytes);
+                    commands.add(new String(bytes, StandardCharsets.UTF_8));
+                    readOffset += RECORD_HEADER_SIZE + length;
+                    unacked.add(new long[]{readSegment, readOffset});
+                } else if (readSegment < writeSegment) {
+                    readSegment++;
+                    readOffset = 0;
+                    readBuffer = readSegment == writeSegment ? writeBuffer : map(readSegment);
+                } else if (commands.isEmpty() && remaining > 0) {
+                    remaining = appended.awaitNanos(remaining);
+                } else {
+                    break;
+                }
+            }
+            return commands;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The server answered the first count commands handed out since the last acknowledgment.
+    // The checkpoint moves past them and segments that are done with are deleted.
+    public void ack(int count) throws IOException {
+        if (count <= 0) return;
+        lock.lock();
+        try {
+            long[] position = null;
+            for (int i = 0; i < count && !unacked.isEmpty(); i++) {
+                position = unacked.poll();
+                waiting--;
+            }
+            if (position == null) return;
+
+            long previousSegment = ackedSegment;
+            ackedSegment = position[0];
+            ackedOffset = (int) position[1];
+            writeCheckpoint();
+            for (long segment = previousSegment; segment < ackedSegment; segment++) {
+                Files.deleteIfExists(segmentPath(segment));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Commands the server has not answered yet, including those handed out
+    public long waiting() {
+        lock.lock();
+        try {
+            return waiting;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Writes appended commands through to the disk
+    public void force() {
+        lock.lock();
+        try {
+            if (dirty && !closed) {
+                writeBuffer.force();
+                dirty = false;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void close() {
+        force();
+        lock.lock();
+        try {
+            closed = true;
+            appended.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The length of an intact record at offset, 0 at the end of the data or where a record is broken
+    private int validRecordAt(MappedByteBuffer buffer, int offset) {
+        if (SEGMENT_SIZE - offset < RECORD_HEADER_SIZE) return 0;
+        int length = buffer.getInt(offset);
+        if (length <= 0 || length > SEGMENT_SIZE - offset - RECORD_HEADER_SIZE) return 0;
+        checksum.reset();
+        checksum.update(buffer.slice(offset + RECORD_HEADER_SIZE, length));
+        return (int) checksum.getValue() == buffer.getInt(offset + 4) ? length : 0;
+    }
+
+    // The file is created at full size, the mapping stays valid after the channel is closed
+    private MappedByteBuffer map(long segment) throws IOException {
+        try (FileChannel channel = FileChannel.open(segmentPath(segment),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+        }
+    }
+
+    private Path segmentPath(long segment) {
+        return directory.resolve(String.format("%020d%s", segment, SEGMENT_SUFFIX));
+    }
+
+    private void readCheckpoint() {
+        Path path = directory.resolve(CHECKPOINT);
+        if (!Files.isRegularFile(path)) return;
+        try (InputStream file = Files.newInputStream(path); DataInputStream in = new DataInputStream(file)) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) return;
+            ackedSegment = in.readLong();
+            ackedOffset = in.readInt();
+        } catch (IOException e) {
+            // without a checkpoint everything still in the directory is sent again
+            ackedSegment = 0;
+            ackedOffset = 0;
+        }
+    }
+
+    // Replaced in one rename, a crash leaves either the old or the new checkpoint
+    private void writeCheckpoint() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(20);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(ackedSegment);
+        out.writeInt(ackedOffset);
+
+        Path path = directory.resolve(CHECKPOINT);
+        Path temp = path.resolveSibling(CHECKPOINT + ".tmp");
+        Files.write(temp, bytes.toByteArray());
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
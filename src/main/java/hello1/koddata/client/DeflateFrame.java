@@ -0,0 +1,160 @@
+package hello1.koddata.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.Deflater;
+
+// Streams its source through a Deflater in bounded blocks, so memory stays at two 64 KB buffers whatever the source size.
+// The buffers and the Deflater are only set up by the first write, a frame waiting in the queue holds just its source.
+// Wire format after the header: blockLength(4) data ... blockLength 0.
+public class DeflateFrame implements OutboundFrame {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // opens the data to compress, again when the frame is rewound
+    private interface Source {
+        ReadableByteChannel open() throws IOException;
+    }
+
+    private final ByteBuffer header;
+    private final Source opener;
+    // bytes of the source kept in memory, 0 when it is read from disk
+    private final long heldBytes;
+    private ReadableByteChannel source;
+    private ByteBuffer input;
+    private ByteBuffer output;
+    private Deflater deflater;
+
+    private boolean sourceDone = false;
+    private boolean done = false;
+    private long written = 0;
+
+    private DeflateFrame(ByteBuffer header, Source opener, long heldBytes) throws IOException {
+        this.header = header;
+        this.opener = opener;
+        this.heldBytes = heldBytes;
+        this.source = opener.open();
+    }
+
+    public static DeflateFrame command(byte[] body) {
+        ByteBuffer header = ByteBuffer.allocate(1 + 8);
+        header.put(Protocol.MODE_DEFLATE_COMMAND).putLong(body.length).flip();
+        try {
+            return new DeflateFrame(header, () -> Channels.newChannel(new ByteArrayInputStream(body)), body.length);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // opening an in-memory source does not fail
+        }
+    }
+
+    // A script sent as one command, read from disk while it is compressed
+    public static DeflateFrame script(Path path) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(1 + 8);
+        header.put(Protocol.MODE_DEFLATE_COMMAND).putLong(Files.size(path)).flip();
+        return new DeflateFrame(header, () -> FileChannel.open(path, StandardOpenOption.READ), 0);
+    }
+
+    public static DeflateFrame upload(Path path) throws IOException {
+        byte[] filenameBytes = path.getFileName().toString().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer header = ByteBuffer.allocate(1 + 4 + filenameBytes.length + 8);
+        header.put(Protocol.MODE_DEFLATE_UPLOAD).putInt(filenameBytes.length).put(filenameBytes).putLong(Files.size(path)).flip();
+        return new DeflateFrame(header, () -> FileChannel.open(path, StandardOpenOption.READ), 0);
+    }
+
+    @Override
+    public boolean writeTo(WritableByteChannel channel) throws IOException {
+        if (deflater == null) {
+            input = ByteBuffer.allocate(BUFFER_SIZE).flip();
+            output = ByteBuffer.allocate(BUFFER_SIZE + 4).flip();
+            deflater = new Deflater(Deflater.BEST_SPEED);
+        }
+        if (header.hasRemaining()) {
+            written += channel.write(header);
+            if (header.hasRemaining()) return false;
+        }
+
+        while (true) {
+            if (output.hasRemaining()) {
+                written += channel.write(output);
+                if (output.hasRemaining()) return false;
+            }
+            if (done) return true;
+            nextBlock();
+        }
+    }
+
+    private void nextBlock() throws IOException {
+        output.clear();
+        output.position(4);
+
+        while (output.hasRemaining() && !deflater.finished()) {
+            if (deflater.needsInput() && !sourceDone) {
+                input.clear();
+                if (source.read(input) < 0) {
+                    sourceDone = true;
+                    deflater.finish();
+                }
+                input.flip();
+                deflater.setInput(input);
+            }
+            deflater.deflate(output);
+        }
+
+        int blockLength = output.position() - 4;
+        if (blockLength == 0) {
+            done = true; // the empty block ends the stream
+        }
+        output.putInt(0, blockLength);
+        output.flip();
+    }
+
+    @Override
+    public boolean rewind() throws IOException {
+        source.close();
+        source = opener.open();
+        if (deflater != null) {
+            deflater.reset();
+            input.clear().flip();
+            output.clear().flip();
+        }
+        header.rewind();
+        sourceDone = false;
+        done = false;
+        written = 0;
+        return true;
+    }
+
+    @Override
+    public long size() {
+        return written;
+    }
+
+    @Override
+    public long written() {
+        return written;
+    }
+
+    @Override
+    public long charge() {
+        return heldBytes;
+    }
+
+    @Override
+    public void release() {
+        if (deflater != null) deflater.end();
+        try {
+            source.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -2,29 +2,227 @@ package hello1.koddata.client;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
 
 public class FileState {
 
+    // every completed chunk is forced to disk and its checksum recorded in the sidecar, a resumed download continues after the last one
+    public static final int CHUNK_SIZE = 8 << 20;
+
     public String name;
-    public int receivedBytes;
-    public int expectedBytes;
-
-    public ByteBuffer receivedBuffer;
-
-    public void doSave() {
-        try (AsynchronousFileChannel afc = AsynchronousFileChannel.open(
-                Path.of(name),
-                StandardOpenOption.CREATE,
-                StandardOpenOption.WRITE,
-                StandardOpenOption.TRUNCATE_EXISTING
-        )) {
-            receivedBuffer.flip();                 // prepare for writing
-            afc.write(receivedBuffer, 0);          // write file starting at offset 0
-        } catch (IOException ex) {
-            ex.printStackTrace();
+    public long receivedBytes;
+    public long expectedBytes;
+
+    private final Path targetPath;
+    private final Path partPath;
+    private final Path statePath;
+    private FileChannel channel;
+    private IOException failure;
+
+    // created with the first completed chunk, small downloads never get a sidecar
+    private boolean checkpoints = false;
+    private TransferState state;
+    private final CRC32C chunkChecksum = new CRC32C();
+
+    public FileState(String name, long expectedBytes) {
+        this(Path.of(""), name, expectedBytes);
+    }
+
+    public FileState(Path directory, String name, long expectedBytes) {
+        this(directory, name, expectedBytes, 0);
+    }
+
+    // With an offset the existing .part file is continued, the offset has to come from verifiedOffset()
+    public FileState(Path directory, String name, long expectedBytes, long offset) {
+        // the name comes from the server, never let it point outside the target directory
+        String safeName = safeName(name);
+        this.name = safeName != null ? safeName : String.valueOf(name);
+        this.expectedBytes = expectedBytes;
+        this.receivedBytes = offset;
+        if (safeName == null) {
+            // the payload is still consumed so the stream stays in sync, doSave() reports the failure
+            this.targetPath = null;
+            this.partPath = null;
+            this.statePath = null;
+            this.failure = new IOException("invalid file name from server: \"" + name + "\"");
+            return;
+        }
+        this.targetPath = directory.resolve(this.name);
+        this.partPath = directory.resolve(this.name + ".part");
+        this.statePath = TransferState.downloadStatePath(directory, this.name);
+
+        try {
+            if (offset > 0) {
+                checkpoints = true;
+                state = TransferState.load(statePath);
+                if (state == null || state.size != expectedBytes || state.offset != offset) {
+                    throw new IOException("no resumable download of " + this.name + " at offset " + offset);
+                }
+                this.channel = FileChannel.open(partPath, StandardOpenOption.WRITE);
+            } else {
+                Files.deleteIfExists(statePath);
+                this.channel = FileChannel.open(
+                        partPath,
+                        StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING
+                );
+            }
+        } catch (IOException e) {
+            failure = e;
+        }
+    }
+
+    // The last element of name, null if there is none or it is "." or "..", those would write outside the directory
+    static String safeName(String name) {
+        if (name == null || name.isEmpty()) return null;
+        Path fileName;
+        try {
+            fileName = Path.of(name).getFileName();
+        } catch (InvalidPathException e) {
+            return null;
+        }
+        if (fileName == null) return null;
+        String result = fileName.toString();
+        return result.isEmpty() || result.equals(".") || result.equals("..") ? null : result;
+    }
+
+    // Records a checksum per completed chunk so the download survives a lost connection, see suspend()
+    public void enableCheckpoints() {
+        this.checkpoints = true;
+    }
+
+    // Offset a download of name can continue from, the chunks on disk that still match their recorded checksums.
+    // Chunks after the first mismatch are dropped from the sidecar. 0 means there is nothing to resume.
+    public static long verifiedOffset(Path directory, String name) {
+        TransferState state = TransferState.load(TransferState.downloadStatePath(directory, name));
+        Path part = directory.resolve(name + ".part");
+        if (state == null || !Files.isRegularFile(part)) return 0;
+
+        try (FileChannel channel = FileChannel.open(part, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+            CRC32C checksum = new CRC32C();
+
+            for (int chunk = 0; chunk < state.getChecksumCount(); chunk++) {
+                checksum.reset();
+                long position = (long) chunk * state.chunkSize;
+                long end = position + state.chunkSize;
+                while (position < end) {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                    int read = channel.read(buffer, position);
+                    if (read < 0) break;
+                    buffer.flip();
+                    checksum.update(buffer);
+                    position += read;
+                }
+
+                if (position < end || (int) checksum.getValue() != state.getChecksum(chunk)) {
+                    state.truncate(chunk);
+                    state.save();
+                    break;
+                }
+            }
+            return state.offset;
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    // Writes the part of src that belongs to this file straight to disk and leaves anything after it in src.
+    // Returns true once the whole file has been received.
+    public boolean receive(ByteBuffer src) {
+        int take = (int) Math.min(src.remaining(), expectedBytes - receivedBytes);
+        int limit = src.limit();
+        int end = src.position() + take;
+
+        while (src.position() < end) {
+            // never cross a chunk boundary in one step so each checksum covers exactly one chunk
+            int step = (int) Math.min(end - src.position(), CHUNK_SIZE - receivedBytes % CHUNK_SIZE);
+            src.limit(src.position() + step);
+
+            if (failure == null) {
+                if (checkpoints) chunkChecksum.update(src.duplicate());
+                try {
+                    while (src.hasRemaining()) {
+                        channel.write(src, receivedBytes + (step - src.remaining()));
+                    }
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+
+            // after a write failure the remaining bytes are still consumed so the stream stays in sync
+            src.position(src.limit());
+            receivedBytes += step;
+            if (checkpoints && receivedBytes % CHUNK_SIZE == 0 && !isComplete()) {
+                completeChunk();
+            }
+        }
+
+        src.limit(limit);
+        return isComplete();
+    }
+
+    private void completeChunk() {
+        if (failure != null) return;
+        try {
+            channel.force(false);
+            if (state == null) {
+                state = new TransferState(statePath, name, expectedBytes, null, 0, CHUNK_SIZE);
+            }
+            state.addChecksum((int) chunkChecksum.getValue());
+            state.offset = receivedBytes;
+            state.save();
+        } catch (IOException e) {
+            failure = e;
+        }
+        chunkChecksum.reset();
+    }
+
+    public boolean isComplete() {
+        return receivedBytes >= expectedBytes;
+    }
+
+    public void doSave() throws IOException {
+        if (failure != null) {
+            abort();
+            throw failure;
+        }
+        channel.force(false);
+        channel.close();
+        Files.move(partPath, targetPath, StandardCopyOption.REPLACE_EXISTING);
+        Files.deleteIfExists(statePath);
+    }
+
+    // Drops everything received so far
+    public void abort() {
+        try {
+            if (channel != null) channel.close();
+            if (partPath == null) return; // the name was rejected, nothing was created
+            Files.deleteIfExists(partPath);
+            Files.deleteIfExists(statePath);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // The connection went away mid file, keeps the verified chunks so the download can be resumed
+    public void suspend() {
+        if (state == null || failure != null) {
+            abort();
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
         }
     }
 }
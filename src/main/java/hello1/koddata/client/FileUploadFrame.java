@@ -0,0 +1,95 @@
+package hello1.koddata.client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+public class FileUploadFrame implements OutboundFrame {
+
+    // upper bound for a single transferTo call, keeps every write bounded no matter the file size
+    private static final long CHUNK_SIZE = 1 << 20;
+
+    private final String filename;
+    private final FileChannel fileChannel;
+    private final ByteBuffer header;
+    private final long size;
+    private long position;
+
+    public FileUploadFrame(Path path) throws IOException {
+        this.filename = path.getFileName().toString();
+        this.fileChannel = FileChannel.open(path, StandardOpenOption.READ);
+        this.size = fileChannel.size();
+
+        // the upload header carries the size as a 32-bit int
+        if (size > Integer.MAX_VALUE) {
+            fileChannel.close();
+            throw new IOException("file is " + size + " bytes, upload frames are limited to " + Integer.MAX_VALUE);
+        }
+
+        byte[] filenameBytes = filename.getBytes(StandardCharsets.UTF_8);
+        this.header = ByteBuffer.allocate(1 + 4 + filenameBytes.length + 4);
+        header.put(Protocol.MODE_UPLOAD);
+        header.putInt(filenameBytes.length);
+        header.put(filenameBytes);
+        header.putInt((int) size);
+        header.flip();
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    @Override
+    public boolean writeTo(WritableByteChannel channel) throws IOException {
+        if (header.hasRemaining()) {
+            channel.write(header);
+            if (header.hasRemaining()) return false;
+        }
+
+        while (position < size) {
+            long sent = fileChannel.transferTo(position, Math.min(CHUNK_SIZE, size - position), channel);
+            if (sent == 0) {
+                if (fileChannel.size() <= position) {
+                    throw new IOException("file " + filename + " shrank during upload");
+                }
+                return false; // channel is full, try again later
+            }
+            position += sent;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean rewind() {
+        header.rewind();
+        position = 0;
+        return true;
+    }
+
+    @Override
+    public long size() {
+        return header.limit() + size;
+    }
+
+    @Override
+    public long written() {
+        return header.position() + position;
+    }
+
+    @Override
+    public void release() {
+        try {
+            fileChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package hello1.koddata.client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+// Incremental decoder for everything the server sends. Frames may be split or merged across reads,
+// decode() consumes what it can and leaves an incomplete header in the buffer for the next read.
+//
+//   login response : status(1) sessionId(4) [capabilities(1)]  only while a login is pending
+//   file           : 'K' 'D' nameLen(4) name sizeU32(4) payload
+//   text           : 'K' 'T' lengthU32(4) utf8 payload
+//   tagged text    : 'K' 'R' requestId(8) lengthU32(4) utf8 payload
+//   upload ack     : 'K' 'A' nameLen(4) name offset(8)
+//   resumed file   : 'K' 'P' nameLen(4) name size(8) offset(8) payload from offset on
+//   'd' 't' 'r'    : the frames above with compressedLengthU32(4) after the header, the payload is inflated
+//                    here in bounded chunks so the handler always sees plain bytes
+//   anything else  : unframed text, runs to the end of the current read (older servers)
+public class FrameDecoder {
+
+    public interface Handler {
+        // capabilities is 0 unless the server answered with LOGIN_OK_WITH_CAPABILITIES
+        void onLoginResponse(byte status, long sessionId, int capabilities);
+
+        // length is -1 for unframed text, requestId is -1 unless the text answers a tagged command
+        void onTextStart(long length, long requestId);
+
+        // data holds only bytes of the current frame and must be consumed completely
+        void onTextData(ByteBuffer data);
+
+        void onTextEnd();
+
+        void onFileStart(String name, long size);
+
+        // a file continued from offset, the data that follows starts there
+        void onFileResume(String name, long size, long offset);
+
+        void onUploadAck(String name, long offset);
+
+        void onFileData(ByteBuffer data);
+
+        void onFileEnd();
+    }
+
+    private enum State { FRAME_START, TEXT_BODY, FILE_BODY }
+
+    private static final int LOGIN_RESPONSE_SIZE = 1 + 4;
+    private static final int INFLATE_BUFFER_SIZE = 64 * 1024;
+
+    private final Handler handler;
+
+    private State state = State.FRAME_START;
+    private long bodyRemaining;
+
+    // set while the current body is a deflate stream
+    private boolean deflated = false;
+    private Inflater inflater;
+    private ByteBuffer inflated;
+
+    private volatile boolean expectingLogin = false;
+
+    public FrameDecoder(Handler handler) {
+        this.handler = handler;
+    }
+
+    public void expectLoginResponse() {
+        expectingLogin = true;
+    }
+
+    // Forgets a frame that was cut off, the next byte is expected to start a new one
+    public void reset() {
+        state = State.FRAME_START;
+        bodyRemaining = 0;
+        deflated = false;
+        expectingLogin = false;
+    }
+
+    public void decode(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            switch (state) {
+                case FRAME_START -> {
+                    if (!decodeFrameStart(buffer)) return;
+                }
+                case TEXT_BODY -> {
+                    if (passBody(buffer, true)) {
+                        state = State.FRAME_START;
+                        handler.onTextEnd();
+                    }
+                }
+                case FILE_BODY -> {
+                    if (passBody(buffer, false)) {
+                        state = State.FRAME_START;
+                        handler.onFileEnd();
+                    }
+                }
+            }
+        }
+    }
+
+    // Returns false when the buffer does not hold a complete header yet
+    private boolean decodeFrameStart(ByteBuffer buffer) throws IOException {
+        int start = buffer.position();
+        int available = buffer.remaining();
+
+        if (expectingLogin) {
+            byte status = buffer.get(start);
+            boolean withCapabilities = status == Protocol.LOGIN_OK_WITH_CAPABILITIES;
+            if (available < LOGIN_RESPONSE_SIZE + (withCapabilities ? 1 : 0)) return false;
+
+            buffer.get();
+            long sessionId = buffer.getInt();
+            int capabilities = withCapabilities ? buffer.get() & 0xFF : 0;
+            expectingLogin = false;
+            handler.onLoginResponse(status, sessionId, capabilities);
+            return true;
+        }
+
+        if (buffer.get(start) == Protocol.FRAME_MARKER) {
+            if (available < 2) return false; // could still be a frame marker
+            byte type = buffer.get(start + 1);
+            boolean compressed = type == Protocol.FRAME_DEFLATE_TEXT || type == Protocol.FRAME_DEFLATE_TAGGED_TEXT
+                    || type == Protocol.FRAME_DEFLATE_FILE;
+            int extra = compressed ? 4 : 0;
+
+            if (type == Protocol.FRAME_TEXT || type == Protocol.FRAME_DEFLATE_TEXT) {
+                if (available < 2 + 4 + extra) return false;
+                buffer.position(start + 2);
+                long length = Integer.toUnsignedLong(buffer.getInt());
+                handler.onTextStart(length, -1);
+                startBody(State.TEXT_BODY, length, compressed, buffer);
+                return true;
+            }
+
+            if (type == Protocol.FRAME_TAGGED_TEXT || type == Protocol.FRAME_DEFLATE_TAGGED_TEXT) {
+                if (available < 2 + 8 + 4 + extra) return false;
+                buffer.position(start + 2);
+                long requestId = buffer.getLong();
+                long length = Integer.toUnsignedLong(buffer.getInt());
+                handler.onTextStart(length, requestId);
+                startBody(State.TEXT_BODY, length, compressed, buffer);
+                return true;
+            }
+
+            if (type == Protocol.FRAME_FILE || type == Protocol.FRAME_DEFLATE_FILE) {
+                if (available < 2 + 4) return false;
+                int nameSize = buffer.getInt(start + 2);
+                if (nameSize < 0 || nameSize > buffer.capacity() - 2 - 4 - 4 - extra) {
+                    throw new IOException("Malformed file header, name size " + nameSize);
+                }
+                if (available < 2 + 4 + nameSize + 4 + extra) return false;
+
+                buffer.position(start + 2 + 4);
+                byte[] nameBytes = new byte[nameSize];
+                buffer.get(nameBytes);
+                long size = Integer.toUnsignedLong(buffer.getInt());   // FULL file size
+
+                handler.onFileStart(new String(nameBytes, StandardCharsets.UTF_8), size);
+                startBody(State.FILE_BODY, size, compressed, buffer);
+                return true;
+            }
+
+            if (type == Protocol.FRAME_FILE_RESUME || type == Protocol.FRAME_UPLOAD_ACK) {
+                boolean resume = type == Protocol.FRAME_FILE_RESUME;
+                int tail = resume ? 8 + 8 : 8;
+                if (available < 2 + 4) return false;
+                int nameSize = buffer.getInt(start + 2);
+                if (nameSize < 0 || nameSize > buffer.capacity() - 2 - 4 - tail) {
+                    throw new IOException("Malformed " + (resume ? "file" : "ack") + " header, name size " + nameSize);
+                }
+                if (available < 2 + 4 + nameSize + tail) return false;
+
+                buffer.position(start + 2 + 4);
+                byte[] nameBytes = new byte[nameSize];
+                buffer.get(nameBytes);
+                String name = new String(nameBytes, StandardCharsets.UTF_8);
+
+                if (!resume) {
+                    handler.onUploadAck(name, buffer.getLong());
+                    return true;
+                }
+                long size = buffer.getLong();
+                long offset = buffer.getLong();
+                if (offset < 0 || offset > size) {
+                    throw new IOException("Malformed file header, offset " + offset + " of " + size);
+                }
+                handler.onFileResume(name, size, offset);
+                startBody(State.FILE_BODY, size - offset, false, buffer);
+                return true;
+            }
+        }
+
+        // unframed text from an older server, all we can do is take the whole read
+        handler.onTextStart(-1, -1);
+        handler.onTextData(buffer);
+        handler.onTextEnd();
+        return true;
+    }
+
+    // For a compressed frame the body is the deflate stream, its length still has to be read from the header
+    private void startBody(State bodyState, long length, boolean compressed, ByteBuffer buffer) {
+        state = bodyState;
+        deflated = compressed;
+        if (compressed) {
+            bodyRemaining = Integer.toUnsignedLong(buffer.getInt());
+            if (inflater == null) {
+                inflater = new Inflater();
+                inflated = ByteBuffer.allocate(INFLATE_BUFFER_SIZE);
+            }
+            inflater.reset();
+        } else {
+            bodyRemaining = length;
+        }
+        finishEmptyBody();
+    }
+
+    private void finishEmptyBody() {
+        if (bodyRemaining > 0) return;
+        if (state == State.TEXT_BODY) handler.onTextEnd();
+        else handler.onFileEnd();
+        state = State.FRAME_START;
+    }
+
+    // Hands the next slice of the current body to the handler, returns true once the body is complete
+    private boolean passBody(ByteBuffer buffer, boolean text) throws IOException {
+        int take = (int) Math.min(buffer.remaining(), bodyRemaining);
+        int limit = buffer.limit();
+        int end = buffer.position() + take;
+        buffer.limit(end);
+
+        if (deflated) inflate(buffer, text);
+        else if (text) handler.onTextData(buffer);
+        else handler.onFileData(buffer);
+
+        buffer.limit(limit);
+        buffer.position(end);
+        bodyRemaining -= take;
+        return bodyRemaining == 0;
+    }
+
+    // Inflates one slice of compressed body, handing the output on whenever the buffer fills
+    private void inflate(ByteBuffer compressed, boolean text) throws IOException {
+        inflater.setInput(compressed);
+        try {
+            while (!inflater.finished()) {
+                inflated.clear();
+                int produced = inflater.inflate(inflated);
+                if (produced > 0) {
+                    inflated.flip();
+                    if (text) handler.onTextData(inflated);
+                    else handler.onFileData(inflated);
+                } else if (inflater.needsInput()) {
+                    break;
+                } else if (inflater.needsDictionary()) {
+                    throw new IOException("Compressed frame needs a preset dictionary");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Malformed compressed frame", e);
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package hello1.koddata.client;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Programmatic access to a KodData server for scripts and batch jobs.
+// Keeps a pool of logged in connections that share one session, any thread may submit commands.
+public class KodDataClient implements AutoCloseable {
+
+    private final String host, username, password;
+    private final int port;
+    private final int poolSize;
+    private long sessionId;
+
+    private final List<ServerService> connections = new CopyOnWriteArrayList<>();
+
+    // guarded by lock
+    private final Queue<ServerService> idle = new ArrayDeque<>();
+    private final Queue<PendingCommand> waiting = new ArrayDeque<>();
+    private final Object lock = new Object();
+    // passes of dispatch() asked for, only the thread that raised it from zero runs them
+    private final AtomicInteger dispatchPasses = new AtomicInteger();
+
+    private MessageSink messageSink;
+    private final ClientMetrics metrics = new ClientMetrics();
+    private Path downloadDirectory = Path.of("");
+    private boolean pipelining = false;
+    private boolean compression = false;
+    private boolean reconnect = false;
+    private long sendBufferBytes = 0;
+    private SendBudget.Policy backpressure;
+    private volatile boolean closed = false;
+
+    private record PendingCommand(String command, CompletableFuture<String> future) {
+    }
+
+    public KodDataClient(String host, int port, String username, String password, long sessionId, int poolSize) {
+        if (poolSize <= 0) {
+            throw new IllegalArgumentException("pool size must be positive");
+        }
+        this.host = host;
+        this.port = port;
+        this.username = username;
+        this.password = password;
+        this.sessionId = sessionId;
+        this.poolSize = poolSize;
+    }
+
+    // Where server output that answers no request ends up, e.g. file downloads. Set before connect().
+    public void initMessageSink(MessageSink messageSink) {
+        this.messageSink = messageSink;
+    }
+
+    // Where files pushed by the server are saved. Set before connect().
+    public void setDownloadDirectory(Path downloadDirectory) {
+        this.downloadDirectory = downloadDirectory;
+    }
+
+    // Asks the server for tagged commands at login, then every connection can have many commands in flight
+    public void enablePipelining() {
+        this.pipelining = true;
+    }
+
+    // Asks the server for deflate at login, see ServerService.enableCompression()
+    public void enableCompression() {
+        this.compression = true;
+    }
+
+    // Lets every connection reconnect on its own after a network failure, see ServerService.enableReconnect()
+    public void enableReconnect() {
+        this.reconnect = true;
+    }
+
+    // Bounds what each connection may queue, see ServerService.setSendBuffer(). Set before connect().
+    public void setSendBuffer(long bytes, SendBudget.Policy policy) {
+        this.sendBufferBytes = bytes;
+        this.backpressure = policy;
+    }
+
+    // Opens the pool. The first connection logs in with the given session id, the others join the session it got.
+    public void connect() throws IOException {
+        try {
+            for (int i = 0; i < poolSize; i++) {
+                ServerService connection = new ServerService(host, port, username, password, sessionId);
+                connection.initMessageSink(messageSink);
+                connection.setDownloadDirectory(downloadDirectory);
+                connection.initMetrics(metrics);
+                if (pipelining) connection.enablePipelining();
+                if (compression) connection.enableCompression();
+                if (reconnect) connection.enableReconnect();
+                if (sendBufferBytes > 0) connection.setSendBuffer(sendBufferBytes, backpressure);
+                connection.start();
+                connections.add(connection);
+
+                if (!connection.login()) {
+                    throw new IOException("Login failed: Invalid credentials or session.");
+                }
+                sessionId = connection.getSessionId();
+
+                synchronized (lock) {
+                    idle.offer(connection);
+                }
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    // Counters shared by every connection of the pool
+    public ClientMetrics getMetrics() {
+        return metrics;
+    }
+
+    public long getSessionId() {
+        return sessionId;
+    }
+
+    // Completes with the server's response. Pipelined connections take any number of commands and the least busy one is used.
+    // Otherwise each connection carries one command at a time and the rest wait here until a connection frees up.
+    public CompletableFuture<String> submit(String command) {
+        CompletableFuture<String> future = new CompletableFuture<>();
+        if (closed) {
+            future.completeExceptionally(new IOException("Client is closed"));
+            return future;
+        }
+
+        ServerService pipelined = leastBusyPipelined();
+        if (pipelined != null) {
+            return pipelined.submit(command);
+        }
+
+        synchronized (lock) {
+            waiting.offer(new PendingCommand(command, future));
+        }
+        dispatch();
+        return future;
+    }
+
+    private ServerService leastBusyPipelined() {
+        ServerService best = null;
+        for (ServerService connection : connections) {
+            if (!connection.isRunning() || !connection.isPipelined()) continue;
+            if (best == null || connection.pendingCount() < best.pendingCount()) {
+                best = connection;
+            }
+        }
+        return best;
+    }
+
+    // A command that completes inside submit(), e.g. one refused by a full send buffer, runs its callback on
+    // this thread. The callback's dispatch() then only asks the running loop for another pass instead of
+    // nesting a new one, so a run of failing commands cannot grow the stack.
+    private void dispatch() {
+        if (dispatchPasses.getAndIncrement() > 0) return;
+        int passes = 1;
+        do {
+            dispatchIdle();
+            passes = dispatchPasses.addAndGet(-passes);
+        } while (passes > 0);
+    }
+
+    // Hands waiting commands to idle connections until either runs out
+    private void dispatchIdle() {
+        while (true) {
+            ServerService connection;
+            PendingCommand next;
+            synchronized (lock) {
+                // drop connections that died while idle
+                while (!idle.isEmpty() && !idle.peek().isRunning()) {
+                    idle.poll();
+                }
+                if (idle.isEmpty() || waiting.isEmpty()) {
+                    if (!waiting.isEmpty() && connections.stream().noneMatch(ServerService::isRunning)) {
+                        failWaiting(new IOException("All connections to " + host + ":" + port + " are closed"));
+                    }
+                    return;
+                }
+                connection = idle.poll();
+                next = waiting.poll();
+            }
+
+            connection.submit(next.command()).whenComplete((response, error) -> {
+                if (error != null) next.future().completeExceptionally(error);
+                else next.future().complete(response);
+
+                synchronized (lock) {
+                    if (!closed && connection.isRunning()) idle.offer(connection);
+                }
+                dispatch();
+            });
+        }
+    }
+
+    // caller holds lock
+    private void failWaiting(Throwable error) {
+        PendingCommand pending;
+        while ((pending = waiting.poll()) != null) {
+            pending.future().completeExceptionally(error);
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        for (ServerService connection : connections) {
+            connection.stop();
+        }
+        synchronized (lock) {
+            idle.clear();
+            failWaiting(new IOException("Client is closed"));
+        }
+    }
+}
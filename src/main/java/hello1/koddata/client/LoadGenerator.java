@@ -0,0 +1,265 @@
+package hello1.koddata.client;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Replays a workload from many sessions at once to size a server, over the same ServerService framing the shell uses.
+// With a target rate every session sends on a fixed schedule however fast answers come back (open loop), and latency
+// is counted from when an operation was due rather than when it went out. A stalled server then shows up in the
+// percentiles instead of quietly slowing the senders down (coordinated omission).
+// At full speed every session keeps maxInFlight operations outstanding and latency is counted from the send.
+public class LoadGenerator {
+
+    private static final long PROGRESS_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(5);
+    private static final long DRAIN_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private static final int COMMAND = 0;
+    private static final int CONSULT = 1;
+    private static final int UPLOAD = 2;
+    private static final String[] KIND_NAMES = {"command", "consult", "upload"};
+
+    private final String host, username, password;
+    private final int port;
+    private final int sessions;
+    private final double rate;
+    private final long durationNanos;
+    private final int maxInFlight;
+    private final boolean compress;
+
+    private final LatencyHistogram[] latencies = {new LatencyHistogram(), new LatencyHistogram(), new LatencyHistogram()};
+    private final LongAdder[] errors = {new LongAdder(), new LongAdder(), new LongAdder()};
+    private final AtomicInteger loggedIn = new AtomicInteger();
+    private final List<Operation> operations = new ArrayList<>();
+
+    // 0 keeps the ServerService default
+    private long sendBuffer = 0;
+    private SendBudget.Policy backpressure = SendBudget.Policy.BLOCK;
+
+    // One statement of the workload. Consults carry the script text, they are timed like the command they are sent as.
+    private static final class Operation {
+        final int kind;
+        final String text;
+        final Path path;
+
+        Operation(int kind, String text, Path path) {
+            this.kind = kind;
+            this.text = text;
+            this.path = path;
+        }
+    }
+
+    // rate is in operations per second over all sessions, 0 for full speed
+    public LoadGenerator(String host, int port, String username, String password, int sessions, double rate,
+                         long durationSeconds, int maxInFlight, boolean compress) {
+        if (sessions <= 0 || maxInFlight <= 0 || durationSeconds <= 0 || rate < 0) {
+            throw new IllegalArgumentException("sessions, maxInFlight and duration must be positive, rate must not be negative");
+        }
+        this.host = host;
+        this.port = port;
+        this.username = username;
+        this.password = password;
+        this.sessions = sessions;
+        this.rate = rate;
+        this.durationNanos = TimeUnit.SECONDS.toNanos(durationSeconds);
+        this.maxInFlight = maxInFlight;
+        this.compress = compress;
+    }
+
+    // Bounds what each session may queue, see ServerService.setSendBuffer()
+    public void setSendBuffer(long bytes, SendBudget.Policy policy) {
+        this.sendBuffer = bytes;
+        this.backpressure = policy;
+    }
+
+    // Commands, `upload <file, directory or glob>;` and `consult <script>;` as in the shell, files are read up front
+    public void load(Reader workload) throws IOException {
+        StatementReader statements = new StatementReader(workload);
+        String statement;
+        while ((statement = statements.next()) != null) {
+            String lower = statement.toLowerCase(Locale.ROOT);
+            if (lower.startsWith("upload ")) {
+                String pattern = statement.substring("upload".length(), statement.length() - 1).trim();
+                for (Path file : UploadService.resolve(pattern)) {
+                    if (!Files.isRegularFile(file)) throw new IOException("not a file: " + file);
+                    operations.add(new Operation(UPLOAD, null, file));
+                }
+            } else if (lower.startsWith("consult ")) {
+                Path path = Path.of(statement.substring("consult".length(), statement.length() - 1).trim());
+                operations.add(new Operation(CONSULT, Files.readString(path, StandardCharsets.UTF_8), path));
+            } else {
+                operations.add(new Operation(COMMAND, statement, null));
+            }
+        }
+    }
+
+    // Runs the workload over and over for the configured duration and writes the report to out.
+    // Returns the number of operations that failed.
+    public long run(Writer out) throws IOException, InterruptedException {
+        if (operations.isEmpty()) {
+            throw new IllegalArgumentException("workload is empty");
+        }
+
+        List<Thread> threads = new ArrayList<>();
+        long startNanos = System.nanoTime();
+        for (int i = 0; i < sessions; i++) {
+            int session = i;
+            threads.add(Thread.ofVirtual().name("kd-bench-" + i).start(() -> runSession(session, startNanos)));
+        }
+
+        Thread progress = Thread.ofVirtual().name("kd-bench-progress").start(this::reportProgress);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        progress.interrupt();
+        long elapsedNanos = System.nanoTime() - startNanos;
+
+        writeReport(out, elapsedNanos);
+        out.flush();
+        long failed = 0;
+        for (LongAdder count : errors) {
+            failed += count.sum();
+        }
+        return failed;
+    }
+
+    private void runSession(int session, long startNanos) {
+        ServerService service = new ServerService(host, port, username, password, -1);
+        service.enablePipelining(); // answers are matched by request id, so many can be outstanding
+        if (compress) service.enableCompression();
+        if (sendBuffer > 0) service.setSendBuffer(sendBuffer, backpressure);
+        try {
+            service.start();
+            if (!service.login()) throw new IOException("login rejected");
+            loggedIn.incrementAndGet();
+        } catch (IOException e) {
+            System.err.println("Session " + session + " failed to connect: " + e.getMessage());
+            errors[COMMAND].increment();
+            service.stop();
+            return;
+        }
+
+        // sessions start at staggered offsets so the combined schedule is evenly spaced
+        long intervalNanos = rate > 0 ? (long) (sessions * 1e9 / rate) : 0;
+        long dueNanos = startNanos + (intervalNanos * session) / sessions;
+        long endNanos = startNanos + durationNanos;
+        // only full speed runs are bounded by the window, a fixed schedule is open loop
+        Semaphore window = intervalNanos > 0 ? null : new Semaphore(maxInFlight);
+        List<CompletableFuture<?>> outstanding = new ArrayList<>();
+
+        try {
+            for (int i = session % operations.size(); ; i = (i + 1) % operations.size()) {
+                long now = System.nanoTime();
+                if (intervalNanos > 0) {
+                    if (dueNanos >= endNanos) break;
+                    if (dueNanos > now) LockSupport.parkNanos(dueNanos - now);
+                } else {
+                    if (now >= endNanos) break;
+                    window.acquire();
+                    dueNanos = System.nanoTime();
+                }
+
+                Operation operation = operations.get(i);
+                long due = dueNanos;
+                CompletableFuture<?> done = send(service, operation).whenComplete((result, error) -> {
+                    if (error != null) errors[operation.kind].increment();
+                    else latencies[operation.kind].record(System.nanoTime() - due);
+                    if (window != null) window.release();
+                });
+                outstanding.add(done);
+                outstanding.removeIf(CompletableFuture::isDone);
+                dueNanos += intervalNanos;
+            }
+
+            // give the last answers a moment, anything later counts as failed
+            long deadline = System.nanoTime() + DRAIN_TIMEOUT_NANOS;
+            for (CompletableFuture<?> done : outstanding) {
+                long remaining = deadline - System.nanoTime();
+                try {
+                    done.get(Math.max(0, remaining), TimeUnit.NANOSECONDS);
+                } catch (Exception e) {
+                    // counted by whenComplete, or by stop() failing it below
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            service.stop();
+        }
+    }
+
+    // Commands and consults complete with the server's answer, uploads once the whole file is on the socket.
+    // Upload answers carry no request id, so a workload with uploads needs a server that tags command answers.
+    private static CompletableFuture<?> send(ServerService service, Operation operation) {
+        if (operation.kind != UPLOAD) {
+            return service.submit(operation.text);
+        }
+        try {
+            TrackedFrame frame = new TrackedFrame(service.uploadFrame(operation.path));
+            if (!service.enqueueSend(frame)) return CompletableFuture.failedFuture(new IOException("upload not sent"));
+            return frame.done();
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    private void reportProgress() {
+        long lastCount = 0;
+        long lastNanos = System.nanoTime();
+        while (true) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(PROGRESS_INTERVAL_NANOS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long count = 0;
+            long failed = 0;
+            for (int kind = 0; kind < latencies.length; kind++) {
+                count += latencies[kind].getCount();
+                failed += errors[kind].sum();
+            }
+            long now = System.nanoTime();
+            System.err.printf(Locale.ROOT, "%d sessions, %.1f ops/s, %d done, %d failed%n",
+                    loggedIn.get(), (count - lastCount) / ((now - lastNanos) / 1e9), count, failed);
+            lastCount = count;
+            lastNanos = now;
+        }
+    }
+
+    private void writeReport(Writer out, long elapsedNanos) throws IOException {
+        double seconds = elapsedNanos / 1e9;
+        out.write(String.format(Locale.ROOT, "%d of %d sessions, %s, %s%n", loggedIn.get(), sessions,
+                rate > 0 ? String.format(Locale.ROOT, "target %.1f ops/s, latency from the scheduled start", rate)
+                        : "full speed with " + maxInFlight + " in flight per session, latency from the send",
+                ClientMetrics.formatNanos(elapsedNanos)));
+
+        LatencyHistogram total = new LatencyHistogram();
+        long totalErrors = 0;
+        for (int kind = 0; kind < latencies.length; kind++) {
+            LatencyHistogram histogram = latencies[kind];
+            long failed = errors[kind].sum();
+            if (histogram.getCount() == 0 && failed == 0) continue;
+            writeLine(out, KIND_NAMES[kind], histogram, failed, seconds);
+            total.add(histogram);
+            totalErrors += failed;
+        }
+        writeLine(out, "total", total, totalErrors, seconds);
+    }
+
+    private static void writeLine(Writer out, String name, LatencyHistogram histogram, long failed, double seconds) throws IOException {
+        out.write(String.format(Locale.ROOT, "%-8s %10.1f ops/s  %d failed  %s%n",
+                name, histogram.getCount() / seconds, failed, ClientMetrics.formatLatency(histogram)));
+    }
+}
@@ -1,9 +1,18 @@
 package hello1.koddata.client;
 
+import javax.management.JMException;
+import java.io.BufferedWriter;
 import java.io.IOException;
-import java.nio.ByteBuffer;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 public class Main {
@@ -40,9 +49,16 @@ public class Main {
 
         String password = argMap.getOrDefault("pass", "");
         String sessionIdStr = argMap.getOrDefault("sessionId", "-1");
+        String printRateStr = argMap.getOrDefault("printRate", "60");
+        boolean compress = Boolean.parseBoolean(argMap.getOrDefault("compress", "false"));
+        boolean resume = Boolean.parseBoolean(argMap.getOrDefault("resume", "false"));
+        boolean reconnect = Boolean.parseBoolean(argMap.getOrDefault("reconnect", "false"));
+        // opt-in, like every capability it adds a byte to the login frame that servers before them do not expect
+        boolean pipeline = Boolean.parseBoolean(argMap.getOrDefault("pipeline", "false"));
 
         int port;
         long sessionId = -1;
+        int printRate;
 
         try {
             port = Integer.parseInt(portStr);
@@ -61,7 +77,112 @@ public class Main {
         }
 
         try {
-            start(host, port, username, password, sessionId);
+            printRate = Integer.parseInt(printRateStr);
+            if (printRate <= 0) throw new NumberFormatException();
+        } catch (NumberFormatException e) {
+            System.err.println("PrintRate must be a positive integer.");
+            printUsageAndExit();
+            return;
+        }
+
+        long sendBuffer;
+        SendBudget.Policy backpressure;
+        try {
+            sendBuffer = Long.parseLong(argMap.getOrDefault("sendBuffer", "64")) << 20;
+            if (sendBuffer <= 0) throw new NumberFormatException();
+            backpressure = argMap.getOrDefault("backpressure", "block").equalsIgnoreCase("fail")
+                    ? SendBudget.Policy.FAIL_FAST : SendBudget.Policy.BLOCK;
+        } catch (NumberFormatException e) {
+            System.err.println("SendBuffer must be a positive number of megabytes.");
+            printUsageAndExit();
+            return;
+        }
+
+        if (argMap.containsKey("exec")) {
+            int inFlight;
+            int connections;
+            try {
+                inFlight = Integer.parseInt(argMap.getOrDefault("inFlight", "16"));
+                connections = Integer.parseInt(argMap.getOrDefault("connections", "1"));
+                if (inFlight <= 0 || connections <= 0) throw new NumberFormatException();
+            } catch (NumberFormatException e) {
+                System.err.println("InFlight and connections must be positive integers.");
+                printUsageAndExit();
+                return;
+            }
+
+            System.exit(runBatch(host, port, username, password, sessionId, compress, reconnect, pipeline, sendBuffer, backpressure,
+                    argMap.get("exec"), inFlight, connections));
+        }
+
+        if (argMap.containsKey("bench")) {
+            int sessions;
+            double rate;
+            long duration;
+            int inFlight;
+            try {
+                sessions = Integer.parseInt(argMap.getOrDefault("sessions", "1"));
+                rate = Double.parseDouble(argMap.getOrDefault("rate", "0"));
+                duration = Long.parseLong(argMap.getOrDefault("duration", "30"));
+                inFlight = Integer.parseInt(argMap.getOrDefault("inFlight", "16"));
+                if (sessions <= 0 || rate < 0 || duration <= 0 || inFlight <= 0) throw new NumberFormatException();
+            } catch (NumberFormatException e) {
+                System.err.println("Sessions, duration and inFlight must be positive integers, rate a number of operations per second.");
+                printUsageAndExit();
+                return;
+            }
+
+            System.exit(runBench(host, port, username, password, compress, sendBuffer, backpressure,
+                    argMap.get("bench"), sessions, rate, duration, inFlight));
+        }
+
+        String statsFile = argMap.get("statsFile");
+        long statsInterval;
+        try {
+            statsInterval = Long.parseLong(argMap.getOrDefault("statsInterval", "60"));
+            if (statsInterval <= 0) throw new NumberFormatException();
+        } catch (NumberFormatException e) {
+            System.err.println("StatsInterval must be a positive number of seconds.");
+            printUsageAndExit();
+            return;
+        }
+        boolean statsJmx = Boolean.parseBoolean(argMap.getOrDefault("statsJmx", "false"));
+
+        int uploadConnections;
+        try {
+            uploadConnections = Integer.parseInt(argMap.getOrDefault("uploadConnections", "1"));
+            if (uploadConnections <= 0) throw new NumberFormatException();
+        } catch (NumberFormatException e) {
+            System.err.println("UploadConnections must be a positive integer.");
+            printUsageAndExit();
+            return;
+        }
+
+        boolean cache = Boolean.parseBoolean(argMap.getOrDefault("cache", "false"));
+        long cacheTtl;
+        try {
+            cacheTtl = Long.parseLong(argMap.getOrDefault("cacheTtl", "300"));
+            if (cacheTtl <= 0) throw new NumberFormatException();
+        } catch (NumberFormatException e) {
+            System.err.println("CacheTtl must be a positive number of seconds.");
+            printUsageAndExit();
+            return;
+        }
+
+        String spool = argMap.get("spool");
+        boolean catalog = Boolean.parseBoolean(argMap.getOrDefault("catalog", "false"));
+
+        try {
+            TerminalService terminalService = start(host, port, username, password, sessionId, printRate, compress, resume, reconnect, pipeline,
+                    uploadConnections, cache ? cacheTtl : 0, sendBuffer, backpressure, spool, catalog);
+            if (terminalService == null) {
+                System.exit(1);
+            }
+            exposeMetrics(terminalService.getMetrics(), statsFile, statsInterval, statsJmx);
+            // every thread of the client is virtual, the process ends when the shell does
+            terminalService.awaitExit();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } catch (IOException e) {
             System.err.println("Failed to start services: " + e.getMessage());
             e.printStackTrace();
@@ -71,39 +192,117 @@ public class Main {
 
     private static void printUsageAndExit() {
         System.err.println("Usage:");
-        System.err.println("  java -jar KodDataClient.jar --host <host> --port <port> --username <username> [--pass <password>] [--sessionId <sessionId>]");
+        System.err.println("  java -jar KodDataClient.jar --host <host> --port <port> --username <username> [--pass <password>] [--sessionId <sessionId>] [--printRate <framesPerSecond>] [--compress true]");
+        System.err.println("      [--statsFile <file>] [--statsInterval <seconds>] [--statsJmx true] [--uploadConnections <n>] [--resume true] [--reconnect true]");
+        System.err.println("      [--cache true] [--cacheTtl <seconds>] [--sendBuffer <MB>] [--backpressure block|fail] [--spool <directory>]");
+        System.err.println("      [--catalog true] [--pipeline true]");
+        System.err.println("  java -jar KodDataClient.jar --host <host> --port <port> --username <username> [--pass <password>] [--sessionId <sessionId>] [--compress true] [--reconnect true] --exec <file|-> [--inFlight <n>] [--connections <n>]");
+        System.err.println("      [--sendBuffer <MB>] [--backpressure block|fail] [--pipeline true]");
+        System.err.println("  java -jar KodDataClient.jar --host <host> --port <port> --username <username> [--pass <password>] [--compress true] --bench <workload> [--sessions <n>] [--rate <ops/s>] [--duration <seconds>]");
+        System.err.println("      [--inFlight <n>] [--sendBuffer <MB>] [--backpressure block|fail]");
         System.exit(1);
     }
 
-    private static void start(String host, int port, String username, String password, long sessionId) throws IOException {
+    // Non-interactive mode, no terminal is built. Returns the process exit code.
+    private static int runBatch(String host, int port, String username, String password, long sessionId, boolean compress,
+                                boolean reconnect, boolean pipeline, long sendBuffer, SendBudget.Policy backpressure, String script,
+                                int inFlight, int connections) {
+        try (KodDataClient client = new KodDataClient(host, port, username, password, sessionId, connections)) {
+            client.initMessageSink(System.err::println);
+            // without it every connection has one command in flight, --connections is then what runs them in parallel
+            if (pipeline) client.enablePipelining();
+            if (compress) client.enableCompression();
+            if (reconnect) client.enableReconnect();
+            client.setSendBuffer(sendBuffer, backpressure);
+            client.connect();
+
+            Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 16);
+            try (Reader in = script.equals("-")
+                    ? new InputStreamReader(System.in, StandardCharsets.UTF_8)
+                    : Files.newBufferedReader(Path.of(script), StandardCharsets.UTF_8)) {
+                int failures = new BatchRunner(client, out, inFlight).run(in);
+                return failures == 0 ? 0 : 1;
+            }
+        } catch (IOException e) {
+            System.err.println("Batch execution failed: " + e.getMessage());
+            return 1;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 1;
+        }
+    }
+
+    // Load generator mode, every session logs in on its own. Returns the process exit code.
+    private static int runBench(String host, int port, String username, String password, boolean compress, long sendBuffer,
+                                SendBudget.Policy backpressure, String workload, int sessions, double rate, long duration, int inFlight) {
+        LoadGenerator generator = new LoadGenerator(host, port, username, password, sessions, rate, duration, inFlight, compress);
+        generator.setSendBuffer(sendBuffer, backpressure);
+        try (Reader in = Files.newBufferedReader(Path.of(workload), StandardCharsets.UTF_8)) {
+            generator.load(in);
+        } catch (IOException e) {
+            System.err.println("Failed to read workload: " + e.getMessage());
+            return 1;
+        }
+
+        try {
+            Writer out = new OutputStreamWriter(System.out, StandardCharsets.UTF_8);
+            long failures = generator.run(out);
+            return failures == 0 ? 0 : 1;
+        } catch (IllegalArgumentException | IOException e) {
+            System.err.println("Benchmark failed: " + e.getMessage());
+            return 1;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 1;
+        }
+    }
+
+    private static void exposeMetrics(ClientMetrics metrics, String statsFile, long statsInterval, boolean statsJmx) {
+        if (statsFile != null) {
+            metrics.startPeriodicDump(Path.of(statsFile), statsInterval);
+        }
+        if (statsJmx) {
+            try {
+                metrics.registerMBean();
+            } catch (JMException e) {
+                System.err.println("Failed to register metrics MBean: " + e.getMessage());
+            }
+        }
+    }
+
+    // Returns the connected service, or null when the login was rejected
+    private static TerminalService start(String host, int port, String username, String password, long sessionId, int printRate, boolean compress,
+                                       boolean resume, boolean reconnect, boolean pipeline, int uploadConnections, long cacheTtl,
+                                       long sendBuffer, SendBudget.Policy backpressure, String spool, boolean catalog) throws IOException {
         TerminalService terminalService = new TerminalService("kdsh> ");
+        terminalService.setMaxPrintRate(printRate);
         ServerService serverService = new ServerService(host, port, username, password, sessionId);
         terminalService.initServerService(serverService);
-        serverService.initTerminalService(terminalService);
-
-        byte[] usernameBytes = username.getBytes(StandardCharsets.UTF_8);
-        byte[] passwordBytes = password.getBytes(StandardCharsets.UTF_8);
-        int cap = usernameBytes.length + passwordBytes.length + 8 + 1 + 8;
-        ByteBuffer buffer = ByteBuffer.allocate(cap);
+        serverService.initMessageSink(terminalService);
+        if (compress) serverService.enableCompression();
+        if (resume) serverService.enableResume();
+        if (reconnect) serverService.enableReconnect();
+        serverService.setSendBuffer(sendBuffer, backpressure);
+        // the cache and the spool match answers to commands by request id with --pipeline, in send order without it
+        if (pipeline) serverService.enablePipelining();
+        if (cacheTtl > 0) terminalService.enableResultCache(cacheTtl * 1000);
+        if (spool != null) serverService.enableSpool(Path.of(spool));
+        // opt-in for the same reason as --pipeline
+        if (catalog) serverService.enableCatalog();
 
         serverService.start();
-
-        buffer.put((byte) 2); // login mode
-        buffer.putInt(usernameBytes.length);
-        buffer.put(usernameBytes);
-        buffer.putInt(passwordBytes.length);
-        buffer.put(passwordBytes);
-        buffer.putLong(sessionId);
-
-        byte[] array = new byte[cap];
-        buffer.flip();
-        buffer.get(array);
-        boolean loginResult = serverService.waitForLogin(array);
+        boolean loginResult = serverService.login();
         if (!loginResult) {
             System.out.println("Login failed: Invalid credentials or session.");
-            return;
+            serverService.stop();
+            return null;
         }
         System.out.println("LOGGED IN");
+        if (uploadConnections > 1) {
+            terminalService.initUploadService(new UploadService(
+                    openUploadConnections(serverService, terminalService, host, port, username, password, compress, resume, reconnect, uploadConnections),
+                    terminalService));
+        }
         terminalService.start();
 
         terminalService.enqueueMessage("=====================================");
@@ -112,8 +311,32 @@ public class Main {
         terminalService.enqueueMessage("Session: " + serverService.getSessionId());
         terminalService.enqueueMessage("Connected to server at " + host + ":" + port);
         terminalService.enqueueMessage("=====================================");
+        return terminalService;
     }
 
-
-
+    // The shell's own connection plus extra ones joined to its session, used only for uploads
+    private static List<ServerService> openUploadConnections(ServerService serverService, TerminalService terminalService,
+                                                             String host, int port, String username, String password,
+                                                             boolean compress, boolean resume, boolean reconnect, int count) {
+        List<ServerService> connections = new ArrayList<>();
+        connections.add(serverService);
+        for (int i = 1; i < count; i++) {
+            ServerService connection = new ServerService(host, port, username, password, serverService.getSessionId());
+            connection.initMessageSink(terminalService);
+            connection.initMetrics(serverService.getMetrics());
+            if (compress) connection.enableCompression();
+            if (resume) connection.enableResume();
+            if (reconnect) connection.enableReconnect();
+            try {
+                connection.start();
+                if (!connection.login()) throw new IOException("login rejected");
+            } catch (IOException e) {
+                System.err.println("Failed to open upload connection: " + e.getMessage());
+                connection.stop();
+                break;
+            }
+            connections.add(connection);
+        }
+        return connections;
+    }
 }
@@ -0,0 +1,13 @@
+package hello1.koddata.client;
+
+// Receives server output that is not the answer to a submitted request, and client status messages
+public interface MessageSink {
+
+    void enqueueMessage(String msg);
+
+    // Offered for large output that no request waits for, a sink that returns a stream gets the text piece by piece
+    // instead of as one message. length is the size of the whole text in bytes.
+    default ResultStream openResult(long length) {
+        return null;
+    }
+}
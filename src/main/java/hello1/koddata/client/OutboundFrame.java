@@ -0,0 +1,38 @@
+package hello1.koddata.client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+public interface OutboundFrame {
+
+    // Writes as much of the frame as the channel accepts, returns true once the whole frame is out
+    boolean writeTo(WritableByteChannel channel) throws IOException;
+
+    // Total bytes the frame puts on the wire
+    long size();
+
+    // Bytes the frame holds in memory while it waits to be sent, what it takes out of the send budget.
+    // Frames backed by one buffer hold all of theirs, streamed ones read their data as they go.
+    default long charge() {
+        return buffer() != null ? size() : 0;
+    }
+
+    // Bytes of the frame written so far, for progress reports on frames that take a while to stream
+    default long written() {
+        return 0;
+    }
+
+    // Frees whatever the frame holds (open files, buffers), called once after it is written or dropped
+    void release();
+
+    // Frames backed by a single buffer return it so several of them can go out in one gathering write
+    default ByteBuffer buffer() {
+        return null;
+    }
+
+    // Starts the frame over for a new connection after a partial write, false if it cannot be sent again
+    default boolean rewind() throws IOException {
+        return false;
+    }
+}
@@ -0,0 +1,139 @@
+package hello1.koddata.client;
+
+import java.util.Arrays;
+import java.util.List;
+
+// Set of names indexed by prefix. Every node keeps its children in sorted parallel arrays, so a lookup walks one
+// node per character with a binary search and lists the names below it in order. Not thread safe.
+public class PrefixTrie {
+
+    private static final char[] NO_KEYS = new char[0];
+    private static final Node[] NO_CHILDREN = new Node[0];
+
+    private final Node root = new Node();
+    private final StringBuilder path = new StringBuilder();
+    private int size = 0;
+
+    private static final class Node {
+        char[] keys = NO_KEYS;
+        Node[] children = NO_CHILDREN;
+        int childCount = 0;
+        boolean terminal = false;
+
+        Node child(char c) {
+            int i = Arrays.binarySearch(keys, 0, childCount, c);
+            return i >= 0 ? children[i] : null;
+        }
+
+        Node addChild(char c) {
+            int i = Arrays.binarySearch(keys, 0, childCount, c);
+            if (i >= 0) return children[i];
+            i = -i - 1;
+            if (childCount == keys.length) {
+                int capacity = Math.max(2, childCount * 2);
+                keys = Arrays.copyOf(keys, capacity);
+                children = Arrays.copyOf(children, capacity);
+            }
+            System.arraycopy(keys, i, keys, i + 1, childCount - i);
+            System.arraycopy(children, i, children, i + 1, childCount - i);
+            keys[i] = c;
+            Node child = new Node();
+            children[i] = child;
+            childCount++;
+            return child;
+        }
+
+        void removeChild(char c) {
+            int i = Arrays.binarySearch(keys, 0, childCount, c);
+            if (i < 0) return;
+            System.arraycopy(keys, i + 1, keys, i, childCount - i - 1);
+            System.arraycopy(children, i + 1, children, i, childCount - i - 1);
+            childCount--;
+            children[childCount] = null;
+        }
+    }
+
+    // False if the name was there already
+    public boolean add(CharSequence name) {
+        Node node = root;
+        for (int i = 0; i < name.length(); i++) {
+            node = node.addChild(name.charAt(i));
+        }
+        if (node.terminal) return false;
+        node.terminal = true;
+        size++;
+        return true;
+    }
+
+    // False if the name was not there, nodes left without names below them are dropped
+    public boolean remove(CharSequence name) {
+        Node[] nodes = new Node[name.length() + 1];
+        nodes[0] = root;
+        for (int i = 0; i < name.length(); i++) {
+            nodes[i + 1] = nodes[i].child(name.charAt(i));
+            if (nodes[i + 1] == null) return false;
+        }
+        Node node = nodes[name.length()];
+        if (!node.terminal) return false;
+        node.terminal = false;
+        size--;
+
+        for (int i = name.length(); i > 0 && !nodes[i].terminal && nodes[i].childCount == 0; i--) {
+            nodes[i - 1].removeChild(name.charAt(i - 1));
+        }
+        return true;
+    }
+
+    public boolean contains(CharSequence name) {
+        return contains(name, 0, name.length());
+    }
+
+    // Whether text[start, end) is a name, for callers that should not cut out a substring first
+    public boolean contains(CharSequence text, int start, int end) {
+        Node node = root;
+        for (int i = start; i < end && node != null; i++) {
+            node = node.child(text.charAt(i));
+        }
+        return node != null && node.terminal;
+    }
+
+    // Adds the names starting with prefix to out in sorted order, at most limit of them
+    public void collect(String prefix, int limit, List<String> out) {
+        Node node = root;
+        for (int i = 0; i < prefix.length() && node != null; i++) {
+            node = node.child(prefix.charAt(i));
+        }
+        if (node == null) return;
+
+        path.setLength(0);
+        path.append(prefix);
+        collect(node, limit, out);
+    }
+
+    private int collect(Node node, int limit, List<String> out) {
+        if (limit <= 0) return 0;
+        int added = 0;
+        if (node.terminal) {
+            out.add(path.toString());
+            added++;
+        }
+        for (int i = 0; i < node.childCount && added < limit; i++) {
+            path.append(node.keys[i]);
+            added += collect(node.children[i], limit - added, out);
+            path.setLength(path.length() - 1);
+        }
+        return added;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        root.keys = NO_KEYS;
+        root.children = NO_CHILDREN;
+        root.childCount = 0;
+        root.terminal = false;
+        size = 0;
+    }
+}
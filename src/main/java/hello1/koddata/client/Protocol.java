@@ -0,0 +1,52 @@
+package hello1.koddata.client;
+
+// Wire constants shared by the encoders and the FrameDecoder
+public final class Protocol {
+
+    // first byte of every client frame
+    public static final byte MODE_COMMAND = 0;
+    public static final byte MODE_UPLOAD = 1;
+    public static final byte MODE_LOGIN = 2;
+    public static final byte MODE_TAGGED_COMMAND = 3;   // requestId(8) length(4) utf8 body, needs CAP_TAGGED
+    public static final byte MODE_DEFLATE_COMMAND = 4;  // rawLength(8) blocks, needs CAP_DEFLATE
+    public static final byte MODE_DEFLATE_UPLOAD = 5;   // nameLen(4) name rawSize(8) blocks, needs CAP_DEFLATE
+    public static final byte MODE_CHUNKED_UPLOAD = 6;   // nameLen(4) name size(8) startOffset(8) flags(1) chunks, needs CAP_RESUME
+    public static final byte MODE_RESUME_DOWNLOAD = 7;  // nameLen(4) name offset(8), needs CAP_RESUME
+    public static final byte MODE_CATALOG = 8;          // requestId(8) sinceVersion(8), needs CAP_CATALOG and CAP_TAGGED
+
+    // a catalog request is answered by a tagged text frame with the same request id. The first line is
+    // "full <version>" or "delta <version>", a delta holds the changes after sinceVersion, a full answer replaces
+    // everything. Every following line is +kind name or -kind name, kind is command, variable or dataset.
+
+    // deflate streams are sent as blocks of blockLength(4) data, a block of length 0 ends the stream
+
+    // chunked uploads are sent as rawLength(4) wireLength(4) crc32c(4) data, a chunk with rawLength 0 ends the upload.
+    // The checksum covers the raw bytes, with CHUNK_FLAG_DEFLATE every chunk is its own deflate stream.
+    public static final byte CHUNK_FLAG_DEFLATE = 1;
+
+    // server frames start with 'K' and a type byte
+    public static final byte FRAME_MARKER = 'K';
+    public static final byte FRAME_FILE = 'D';
+    public static final byte FRAME_TEXT = 'T';
+    public static final byte FRAME_TAGGED_TEXT = 'R';   // requestId(8) lengthU32(4) utf8 body
+    public static final byte FRAME_UPLOAD_ACK = 'A';    // nameLen(4) name offset(8), upload bytes before offset are stored
+    public static final byte FRAME_FILE_RESUME = 'P';   // nameLen(4) name size(8) offset(8) payload from offset on
+
+    // the same frames with a compressedLengthU32(4) after the header and a deflate stream of that length as body
+    public static final byte FRAME_DEFLATE_FILE = 'd';
+    public static final byte FRAME_DEFLATE_TEXT = 't';
+    public static final byte FRAME_DEFLATE_TAGGED_TEXT = 'r';
+
+    // first byte of the login response
+    public static final byte LOGIN_FAILED = 2;
+    public static final byte LOGIN_OK_WITH_CAPABILITIES = 3;   // followed by sessionId(4) and accepted capabilities(1)
+
+    // capability bits, offered as an optional trailing byte of the login frame
+    public static final int CAP_TAGGED = 1;
+    public static final int CAP_DEFLATE = 2;
+    public static final int CAP_RESUME = 4;
+    public static final int CAP_CATALOG = 8;
+
+    private Protocol() {
+    }
+}
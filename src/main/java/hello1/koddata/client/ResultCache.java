@@ -0,0 +1,280 @@
+package hello1.koddata.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+// Answers to read-only commands, keyed by session and normalized command text.
+// Recently used answers stay in memory up to maxMemoryBytes, older ones move to files in a temp directory
+// up to maxDiskBytes, after that the least recently used are dropped. Every entry expires after ttlMillis.
+// Any command that may change data clears the cache, the client cannot tell what it touched.
+public class ResultCache {
+
+    // the first word of a command that only reads, anything else is treated as a change
+    private static final Set<String> READ_VERBS = Set.of("select", "show", "describe", "list", "get", "count", "find", "fetch");
+
+    // answers larger than this are not worth keeping, they would push everything else out
+    private static final int MAX_ENTRY_CHARS = 1 << 20;
+
+    private final long maxMemoryBytes;
+    private final long maxDiskBytes;
+    private volatile long ttlMillis;
+
+    // access ordered, the first entry is the least recently used
+    private final LinkedHashMap<String, Entry> memory = new LinkedHashMap<>(64, 0.75f, true);
+    private long memoryBytes = 0;
+
+    // key to file size, in the order entries were moved to disk
+    private final LinkedHashMap<String, Long> disk = new LinkedHashMap<>();
+    private long diskBytes = 0;
+    private Path directory;
+
+    // bumped by every invalidate(), an answer to a read sent before a write must not be stored after it
+    private long generation = 0;
+    // an answer that arrives after close() must not bring the directory back
+    private boolean closed = false;
+
+    private long hits = 0;
+    private long diskHits = 0;
+    private long misses = 0;
+    private long invalidations = 0;
+
+    public ResultCache(long maxMemoryBytes, long maxDiskBytes, long ttlMillis) {
+        this.maxMemoryBytes = maxMemoryBytes;
+        this.maxDiskBytes = maxDiskBytes;
+        this.ttlMillis = ttlMillis;
+    }
+
+    public void setTtlMillis(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+    }
+
+    // Whitespace outside quotes collapses to one space and the trailing ';' is dropped,
+    // so the same query typed twice with different spacing hits the same entry
+    public static String normalize(String command) {
+        StringBuilder normalized = new StringBuilder(command.length());
+        char quote = 0;
+        boolean escaped = false;
+        boolean space = false;
+        for (int i = 0; i < command.length(); i++) {
+            char c = command.charAt(i);
+            if (quote != 0) {
+                normalized.append(c);
+                if (escaped) escaped = false;
+                else if (c == '\\') escaped = true;
+                else if (c == quote) quote = 0;
+                continue;
+            }
+            if (Character.isWhitespace(c)) {
+                space = normalized.length() > 0;
+                continue;
+            }
+            if (space) normalized.append(' ');
+            space = false;
+            if (c == '"' || c == '\'') quote = c;
+            normalized.append(c);
+        }
+        while (normalized.length() > 0 && (normalized.charAt(normalized.length() - 1) == ';'
+                || normalized.charAt(normalized.length() - 1) == ' ')) {
+            normalized.setLength(normalized.length() - 1);
+        }
+        return normalized.toString();
+    }
+
+    public static String key(long sessionId, String normalized) {
+        return sessionId + ":" + normalized;
+    }
+
+    public static boolean isReadOnly(String normalized) {
+        int end = normalized.indexOf(' ');
+        String verb = (end < 0 ? normalized : normalized.substring(0, end)).toLowerCase();
+        return READ_VERBS.contains(verb);
+    }
+
+    // Null on a miss or when the entry has expired
+    public synchronized String get(String key) {
+        long now = System.currentTimeMillis();
+        Entry entry = memory.get(key);
+        if (entry != null) {
+            if (entry.expiresAt > now) {
+                hits++;
+                return entry.value;
+            }
+            removeFromMemory(key);
+        } else if (disk.containsKey(key)) {
+            entry = readFromDisk(key);
+            removeFromDisk(key);
+            if (entry != null && entry.expiresAt > now) {
+                hits++;
+                diskHits++;
+                putInMemory(key, entry);
+                return entry.value;
+            }
+        }
+        misses++;
+        return null;
+    }
+
+    // Taken when a read is sent, pass it to put() with the answer
+    public synchronized long generation() {
+        return generation;
+    }
+
+    // Stores the answer unless the cache was invalidated after generation was taken, the answer may predate the change
+    public synchronized void put(String key, String value, long generation) {
+        if (closed || generation != this.generation || value.length() > MAX_ENTRY_CHARS) return;
+        removeFromMemory(key);
+        removeFromDisk(key);
+        putInMemory(key, new Entry(value, System.currentTimeMillis() + ttlMillis));
+    }
+
+    // Drops every entry, memory and disk
+    public synchronized void invalidate() {
+        invalidations++;
+        generation++;
+        memory.clear();
+        memoryBytes = 0;
+        for (String key : disk.keySet()) {
+            deleteQuietly(entryPath(key));
+        }
+        disk.clear();
+        diskBytes = 0;
+    }
+
+    public synchronized void close() {
+        closed = true;
+        invalidate();
+        if (directory != null) deleteQuietly(directory);
+        directory = null;
+    }
+
+    public synchronized String getReport() {
+        long lookups = hits + misses;
+        return String.format("Cache: %d hits (%d from disk), %d misses, %.1f%% hit rate, %d invalidations%n"
+                        + "  memory: %d entries, %d KB of %d KB%n"
+                        + "  disk:   %d entries, %d KB of %d KB%n"
+                        + "  ttl:    %d s",
+                hits, diskHits, misses, lookups == 0 ? 0.0 : 100.0 * hits / lookups, invalidations,
+                memory.size(), memoryBytes / 1024, maxMemoryBytes / 1024,
+                disk.size(), diskBytes / 1024, maxDiskBytes / 1024,
+                ttlMillis / 1000);
+    }
+
+    private void putInMemory(String key, Entry entry) {
+        memory.put(key, entry);
+        memoryBytes += entry.bytes(key);
+
+        Iterator<Map.Entry<String, Entry>> eldest = memory.entrySet().iterator();
+        while (memoryBytes > maxMemoryBytes && eldest.hasNext()) {
+            Map.Entry<String, Entry> evicted = eldest.next();
+            eldest.remove();
+            memoryBytes -= evicted.getValue().bytes(evicted.getKey());
+            if (evicted.getValue().expiresAt > System.currentTimeMillis()) {
+                writeToDisk(evicted.getKey(), evicted.getValue());
+            }
+        }
+    }
+
+    private void removeFromMemory(String key) {
+        Entry entry = memory.remove(key);
+        if (entry != null) memoryBytes -= entry.bytes(key);
+    }
+
+    // key(UTF) expiresAt(8) valueLength(4) value, the key is stored so a hash collision reads as a miss
+    private void writeToDisk(String key, Entry entry) {
+        try {
+            if (directory == null) {
+                directory = Files.createTempDirectory("kd-cache");
+                directory.toFile().deleteOnExit();
+            }
+            byte[] value = entry.value.getBytes(StandardCharsets.UTF_8);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(value.length + key.length() + 16);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeUTF(key);
+            out.writeLong(entry.expiresAt);
+            out.writeInt(value.length);
+            out.write(value);
+
+            Path path = entryPath(key);
+            Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+            Files.write(temp, bytes.toByteArray());
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            disk.put(key, (long) bytes.size());
+            diskBytes += bytes.size();
+        } catch (IOException e) {
+            return; // the entry is just dropped, the next lookup goes to the server
+        }
+
+        Iterator<Map.Entry<String, Long>> eldest = disk.entrySet().iterator();
+        while (diskBytes > maxDiskBytes && eldest.hasNext()) {
+            Map.Entry<String, Long> evicted = eldest.next();
+            eldest.remove();
+            diskBytes -= evicted.getValue();
+            deleteQuietly(entryPath(evicted.getKey()));
+        }
+    }
+
+    private Entry readFromDisk(String key) {
+        try (InputStream file = Files.newInputStream(entryPath(key)); DataInputStream in = new DataInputStream(file)) {
+            if (!in.readUTF().equals(key)) return null;
+            long expiresAt = in.readLong();
+            byte[] value = in.readNBytes(in.readInt());
+            return new Entry(new String(value, StandardCharsets.UTF_8), expiresAt);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private void removeFromDisk(String key) {
+        Long size = disk.remove(key);
+        if (size != null) {
+            diskBytes -= size;
+            deleteQuietly(entryPath(key));
+        }
+    }
+
+    private Path entryPath(String key) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            return directory.resolve(HexFormat.of().formatHex(hash));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // every JVM has SHA-256
+        }
+    }
+
+    private static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static class Entry {
+        final String value;
+        final long expiresAt;
+
+        Entry(String value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+
+        // chars are two bytes, plus a rough allowance for the map entry itself
+        long bytes(String key) {
+            return 2L * (key.length() + value.length()) + 64;
+        }
+    }
+}
@@ -0,0 +1,360 @@
+package hello1.koddata.client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Locale;
+
+// Writes one result to local files as it comes off the socket, tab separated rows become CSV or a binary
+// columnar file. Rows are converted byte by byte, UTF-8 never uses the bytes for tab, newline, quote or comma
+// inside a character, so the text is never decoded. Memory stays at one row, one row group and the two
+// AsyncFileWriter buffers however large the result.
+//
+// With rotation a new file is started once the current one reached rotateBytes, at a row boundary for CSV and
+// a group boundary for the binary format, the files are numbered name-0001.ext, name-0002.ext and so on.
+//
+// Binary format, integers big endian:
+//   file   "KDCF" version(1) groups, a group of 0 rows ends the file so a cut off export is recognised
+//   group  rows(4) columns(4) and per column encoding(1) length(4) values
+//   values encoding 0: unsigned varint byte count and UTF-8 bytes per value
+//          encoding 1: zigzag varint per value, used when every value of the column in the group is an integer
+// Rows with fewer fields than the widest row of their group are padded with empty strings.
+public class ResultExport implements ResultStream {
+
+    public enum Format {
+        CSV,
+        BINARY
+    }
+
+    private static final int WRITE_BUFFER_SIZE = 1 << 20;
+    private static final int GROUP_ROWS = 8192;
+    private static final int GROUP_BYTES = 4 << 20;
+    private static final byte[] MAGIC = {'K', 'D', 'C', 'F'};
+    private static final byte VERSION = 1;
+    private static final byte ENCODING_STRING = 0;
+    private static final byte ENCODING_LONG = 1;
+
+    private final Path path;
+    private final Format format;
+    private final long rotateBytes;
+    private final MessageSink messageSink;
+    private final long startedNanos = System.nanoTime();
+
+    private AsyncFileWriter writer;
+    private int fileCount = 0;
+    private long finishedBytes = 0;
+    private long rowCount = 0;
+    private IOException failure;
+    private boolean closed = false;
+
+    // the row being received, and where its fields start and end
+    private byte[] line = new byte[256];
+    private int lineLength = 0;
+    private int[] fieldBounds = new int[32];
+    private int fieldCount = 0;
+
+    // the binary row group being collected, one buffer per column
+    private Column[] columns = new Column[0];
+    private int columnCount = 0;
+    private int groupRows = 0;
+    private int groupBytes = 0;
+
+    // rotateBytes 0 writes a single file
+    public ResultExport(Path path, Format format, long rotateBytes, MessageSink messageSink) throws IOException {
+        this.path = path;
+        this.format = format;
+        this.rotateBytes = rotateBytes;
+        this.messageSink = messageSink;
+        openNext();
+    }
+
+    // By file extension, .kdc is the binary format and anything else CSV
+    public static Format formatOf(Path path) {
+        return path.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".kdc") ? Format.BINARY : Format.CSV;
+    }
+
+    @Override
+    public synchronized void write(ByteBuffer data) {
+        if (closed || failure != null) {
+            data.position(data.limit()); // keep reading the frame off the socket, there is nowhere to put it
+            return;
+        }
+        try {
+            while (data.hasRemaining()) {
+                int limit = data.limit();
+                int end = data.position();
+                while (end < limit && data.get(end) != '\n') end++;
+
+                int length = end - data.position();
+                if (lineLength + length > line.length) line = Arrays.copyOf(line, Math.max(line.length * 2, lineLength + length));
+                data.get(line, lineLength, length);
+                lineLength += length;
+                if (end < limit) {
+                    data.get(); // the newline
+                    row();
+                }
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    @Override
+    public synchronized void close(boolean complete) {
+        if (closed) return;
+        closed = true;
+        // a cut off result keeps its complete rows, the partial last one is dropped and a binary file gets
+        // no end group so it reads as cut off
+        boolean partialRow = !complete && lineLength > 0;
+        if (failure == null) {
+            try {
+                if (complete && lineLength > 0) row();
+                finishFile(complete);
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+        if (failure != null) {
+            messageSink.enqueueMessage("Export to " + path + " failed after " + rowCount + " rows: " + failure.getMessage());
+            return;
+        }
+
+        double seconds = (System.nanoTime() - startedNanos) / 1e9;
+        messageSink.enqueueMessage(String.format("Exported %d rows to %s%s, %s in %.1f s%s", rowCount, path,
+                fileCount > 1 ? " (" + fileCount + " files)" : "", ClientMetrics.formatBytes(finishedBytes), seconds,
+                complete ? "" : ", cut off, the connection was lost" + (partialRow ? ", the partial last row was dropped" : "")));
+    }
+
+    // The request failed before or while the result came in, what was written so far is kept
+    public synchronized void abort(String reason) {
+        if (closed) return;
+        closed = true;
+        if (writer != null) writer.abort();
+        messageSink.enqueueMessage("Export to " + path + " failed after " + rowCount + " rows: " + reason);
+    }
+
+    private void row() throws IOException {
+        if (lineLength > 0 && line[lineLength - 1] == '\r') lineLength--;
+        splitFields();
+        if (format == Format.CSV) {
+            writeCsvRow();
+            rowCount++;
+            if (rotateBytes > 0 && writer.position() >= rotateBytes) rotate();
+        } else {
+            addToGroup();
+            rowCount++;
+            if (groupRows >= GROUP_ROWS || groupBytes >= GROUP_BYTES) {
+                writeGroup();
+                if (rotateBytes > 0 && writer.position() >= rotateBytes) rotate();
+            }
+        }
+        lineLength = 0;
+    }
+
+    private void splitFields() {
+        fieldCount = 0;
+        int start = 0;
+        for (int i = 0; i <= lineLength; i++) {
+            if (i == lineLength || line[i] == '\t') {
+                if (fieldCount * 2 + 2 > fieldBounds.length) fieldBounds = Arrays.copyOf(fieldBounds, fieldBounds.length * 2);
+                fieldBounds[fieldCount * 2] = start;
+                fieldBounds[fieldCount * 2 + 1] = i;
+                fieldCount++;
+                start = i + 1;
+            }
+        }
+    }
+
+    // RFC 4180: fields holding a comma, quote or line break are quoted, quotes inside are doubled
+    private void writeCsvRow() throws IOException {
+        for (int f = 0; f < fieldCount; f++) {
+            if (f > 0) writer.write((byte) ',');
+            int start = fieldBounds[f * 2];
+            int end = fieldBounds[f * 2 + 1];
+
+            boolean quote = false;
+            for (int i = start; i < end && !quote; i++) {
+                byte b = line[i];
+                quote = b == ',' || b == '"' || b == '\r';
+            }
+            if (!quote) {
+                writer.write(line, start, end - start);
+                continue;
+            }
+
+            writer.write((byte) '"');
+            int runStart = start;
+            for (int i = start; i < end; i++) {
+                if (line[i] == '"') {
+                    writer.write(line, runStart, i + 1 - runStart);
+                    runStart = i; // the quote goes out a second time with the next run
+                }
+            }
+            writer.write(line, runStart, end - runStart);
+            writer.write((byte) '"');
+        }
+        writer.write((byte) '\r');
+        writer.write((byte) '\n');
+    }
+
+    private void addToGroup() {
+        if (fieldCount > columnCount) {
+            if (fieldCount > columns.length) columns = Arrays.copyOf(columns, fieldCount);
+            for (int c = columnCount; c < fieldCount; c++) {
+                if (columns[c] == null) columns[c] = new Column();
+                // values the rows before this one did not have
+                for (int r = 0; r < groupRows; r++) columns[c].add(line, 0, 0);
+            }
+            columnCount = fieldCount;
+        }
+        for (int c = 0; c < columnCount; c++) {
+            if (c < fieldCount) {
+                int start = fieldBounds[c * 2];
+                columns[c].add(line, start, fieldBounds[c * 2 + 1] - start);
+            } else {
+                columns[c].add(line, 0, 0);
+            }
+        }
+        groupRows++;
+        groupBytes += lineLength;
+    }
+
+    private void writeGroup() throws IOException {
+        if (groupRows == 0) return;
+        writer.writeInt(groupRows);
+        writer.writeInt(columnCount);
+        for (int c = 0; c < columnCount; c++) {
+            columns[c].writeTo(writer);
+            columns[c].clear();
+        }
+        // the next group starts over with the column count of its own rows, the buffers are reused
+        columnCount = 0;
+        groupRows = 0;
+        groupBytes = 0;
+    }
+
+    private void rotate() throws IOException {
+        finishFile(true);
+        openNext();
+    }
+
+    // Without the end marker a binary file reads as cut off
+    private void finishFile(boolean endMarker) throws IOException {
+        if (format == Format.BINARY) {
+            writeGroup();
+            if (endMarker) writer.writeInt(0);
+        }
+        finishedBytes += writer.position();
+        writer.close();
+    }
+
+    private void openNext() throws IOException {
+        fileCount++;
+        Path file = rotateBytes > 0 ? numbered(path, fileCount) : path;
+        // the buffers are kept from file to file
+        if (writer == null) writer = new AsyncFileWriter(file, WRITE_BUFFER_SIZE);
+        else writer.reopen(file);
+        if (format == Format.BINARY) {
+            writer.write(MAGIC, 0, MAGIC.length);
+            writer.write(VERSION);
+        }
+    }
+
+    private void fail(IOException e) {
+        failure = e;
+        if (writer != null) writer.abort();
+    }
+
+    // out.csv becomes out-0001.csv
+    static Path numbered(Path path, int number) {
+        String name = path.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String numbered = dot > 0
+                ? String.format("%s-%04d%s", name.substring(0, dot), number, name.substring(dot))
+                : String.format("%s-%04d", name, number);
+        return path.resolveSibling(numbered);
+    }
+
+    // The values of one column in the current group, back to back with their end offsets
+    private static final class Column {
+        byte[] data = new byte[1024];
+        int length = 0;
+        int[] ends = new int[256];
+        int count = 0;
+
+        void add(byte[] src, int offset, int valueLength) {
+            if (length + valueLength > data.length) data = Arrays.copyOf(data, Math.max(data.length * 2, length + valueLength));
+            System.arraycopy(src, offset, data, length, valueLength);
+            length += valueLength;
+            if (count == ends.length) ends = Arrays.copyOf(ends, ends.length * 2);
+            ends[count++] = length;
+        }
+
+        void clear() {
+            length = 0;
+            count = 0;
+        }
+
+        void writeTo(AsyncFileWriter writer) throws IOException {
+            long[] values = parseLongs();
+            if (values != null) {
+                int size = 0;
+                for (long value : values) size += varLongSize(zigzag(value));
+                writer.write(ENCODING_LONG);
+                writer.writeInt(size);
+                for (long value : values) writer.writeVarLong(zigzag(value));
+                return;
+            }
+
+            int size = length;
+            for (int i = 0; i < count; i++) size += varLongSize(valueLength(i));
+            writer.write(ENCODING_STRING);
+            writer.writeInt(size);
+            for (int i = 0; i < count; i++) {
+                int start = i == 0 ? 0 : ends[i - 1];
+                writer.writeVarLong(ends[i] - start);
+                writer.write(data, start, ends[i] - start);
+            }
+        }
+
+        private int valueLength(int i) {
+            return ends[i] - (i == 0 ? 0 : ends[i - 1]);
+        }
+
+        // null unless every value is a plain decimal integer that fits a long and reads back the same
+        private long[] parseLongs() {
+            long[] values = new long[count];
+            for (int i = 0; i < count; i++) {
+                int start = i == 0 ? 0 : ends[i - 1];
+                int end = ends[i];
+                boolean negative = end > start && data[start] == '-';
+                int digits = end - start - (negative ? 1 : 0);
+                // 18 digits always fit, a leading zero would not survive the round trip
+                if (digits < 1 || digits > 18 || (digits > 1 && data[end - digits] == '0')) return null;
+                if (negative && digits == 1 && data[end - 1] == '0') return null;
+                long value = 0;
+                for (int j = end - digits; j < end; j++) {
+                    byte b = data[j];
+                    if (b < '0' || b > '9') return null;
+                    value = value * 10 + (b - '0');
+                }
+                values[i] = negative ? -value : value;
+            }
+            return values;
+        }
+
+        private static long zigzag(long value) {
+            return (value << 1) ^ (value >> 63);
+        }
+
+        private static int varLongSize(long value) {
+            int size = 1;
+            while ((value & ~0x7FL) != 0) {
+                value >>>= 7;
+                size++;
+            }
+            return size;
+        }
+    }
+}
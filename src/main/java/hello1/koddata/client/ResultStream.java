@@ -0,0 +1,13 @@
+package hello1.koddata.client;
+
+import java.nio.ByteBuffer;
+
+// Receives one large text frame as it comes off the socket
+public interface ResultStream {
+
+    // data holds only bytes of the current frame and must be consumed completely
+    void write(ByteBuffer data);
+
+    // complete is false when the connection dropped before the whole frame arrived
+    void close(boolean complete);
+}
@@ -0,0 +1,251 @@
+package hello1.koddata.client;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Pages through a large result instead of printing it whole. Rows are decoded as they come off the socket and the
+// first page is shown as soon as it is complete. The last RING_ROWS rows stay in memory, once a result outgrows them
+// every row also goes to a temp file so \more, \head and \tail can reach all of it.
+// Tab separated rows are shown as aligned columns, widths are worked out per page.
+public class ResultView implements ResultStream {
+
+    public static final int PAGE_ROWS = 40;
+    private static final int RING_ROWS = 10_000;
+    private static final int MAX_COLUMN_WIDTH = 40;
+
+    // the spill file offset of every INDEX_INTERVAL-th row, so a page is found without reading the rows before it
+    private static final int INDEX_INTERVAL = 1024;
+
+    private final MessageSink messageSink;
+    private final TextDecoder textDecoder = new TextDecoder();
+
+    private final String[] ring = new String[RING_ROWS];
+    private long rowCount = 0;
+    private boolean complete = false;
+
+    private Path spillPath;
+    private OutputStream spill;
+    private long spillBytes = 0;
+    private long[] index = new long[16];
+
+    // first row of the next \more page
+    private long nextRow = 0;
+
+    public ResultView(MessageSink messageSink) {
+        this.messageSink = messageSink;
+    }
+
+    @Override
+    public synchronized void write(ByteBuffer data) {
+        textDecoder.append(data);
+        textDecoder.drainLines(this::addRow);
+    }
+
+    @Override
+    public synchronized void close(boolean complete) {
+        String rest = textDecoder.finish();
+        if (!rest.isEmpty()) addRow(rest);
+        this.complete = complete;
+
+        if (spill != null) {
+            try {
+                spill.flush();
+            } catch (IOException e) {
+                closeSpill(e);
+            }
+        }
+
+        if (nextRow == 0) {
+            showPage(0, PAGE_ROWS);
+        }
+        String summary = rowCount + " rows" + (complete ? "" : " (cut off, the connection was lost)");
+        if (rowCount > nextRow) {
+            summary += ", showing 1-" + nextRow + ". \\more for the next page, \\head <n> or \\tail <n>";
+        }
+        messageSink.enqueueMessage("(" + summary + ")");
+    }
+
+    private void addRow(String row) {
+        if (rowCount == RING_ROWS && spill == null) {
+            openSpill();
+        }
+        if (spill != null) {
+            spillRow(rowCount, row);
+        }
+        ring[(int) (rowCount % RING_ROWS)] = row;
+        rowCount++;
+
+        if (rowCount == PAGE_ROWS && nextRow == 0) {
+            showPage(0, PAGE_ROWS); // the first page shows up before the rest of the result has arrived
+        }
+    }
+
+    private void openSpill() {
+        try {
+            spillPath = Files.createTempFile("kd-result", ".tsv");
+            spillPath.toFile().deleteOnExit();
+            spill = new BufferedOutputStream(Files.newOutputStream(spillPath), 1 << 16);
+            for (long row = 0; row < rowCount; row++) {
+                spillRow(row, ring[(int) (row % RING_ROWS)]);
+            }
+        } catch (IOException e) {
+            closeSpill(e);
+        }
+    }
+
+    private void spillRow(long number, String row) {
+        if (number % INDEX_INTERVAL == 0) {
+            int slot = (int) (number / INDEX_INTERVAL);
+            if (slot == index.length) index = Arrays.copyOf(index, index.length * 2);
+            index[slot] = spillBytes;
+        }
+        byte[] bytes = (row + "\n").getBytes(StandardCharsets.UTF_8);
+        try {
+            spill.write(bytes);
+            spillBytes += bytes.length;
+        } catch (IOException e) {
+            closeSpill(e);
+        }
+    }
+
+    // Without a spill file only the rows still in the ring can be shown
+    private void closeSpill(IOException cause) {
+        messageSink.enqueueMessage("Failed to spill result to disk (" + cause.getMessage() + "), only the last "
+                + RING_ROWS + " rows are kept");
+        try {
+            if (spill != null) spill.close();
+            if (spillPath != null) Files.deleteIfExists(spillPath);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        spill = null;
+        spillPath = null;
+    }
+
+    public synchronized void more(int rows) {
+        if (nextRow >= rowCount) {
+            messageSink.enqueueMessage(complete ? "(end of result)" : "(no more rows yet)");
+            return;
+        }
+        showPage(nextRow, rows);
+    }
+
+    public synchronized void head(int rows) {
+        showPage(0, rows);
+    }
+
+    public synchronized void tail(int rows) {
+        showPage(Math.max(0, rowCount - rows), rows);
+    }
+
+    // Removes the spill file, the view cannot be paged after this
+    public synchronized void discard() {
+        if (spill != null) {
+            try {
+                spill.close();
+                Files.deleteIfExists(spillPath);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        spill = null;
+        spillPath = null;
+        Arrays.fill(ring, null);
+        rowCount = 0;
+        nextRow = 0;
+    }
+
+    private void showPage(long from, int count) {
+        List<String> rows = rows(from, count);
+        if (rows.isEmpty()) return;
+        nextRow = from + rows.size();
+        messageSink.enqueueMessage(format(rows));
+    }
+
+    private List<String> rows(long from, int count) {
+        long end = Math.min(rowCount, from + count);
+        long firstInRing = Math.max(0, rowCount - RING_ROWS);
+        List<String> rows = new ArrayList<>((int) Math.max(0, end - from));
+
+        if (from < firstInRing) {
+            if (spill == null) {
+                messageSink.enqueueMessage("(rows before " + (firstInRing + 1) + " are no longer available)");
+                from = firstInRing;
+            } else {
+                readSpilled(from, (int) (Math.min(end, firstInRing) - from), rows);
+                from = Math.min(end, firstInRing);
+            }
+        }
+        for (long row = from; row < end; row++) {
+            rows.add(ring[(int) (row % RING_ROWS)]);
+        }
+        return rows;
+    }
+
+    private void readSpilled(long from, int count, List<String> rows) {
+        try {
+            spill.flush();
+            try (FileChannel channel = FileChannel.open(spillPath, StandardOpenOption.READ)) {
+                long indexed = from / INDEX_INTERVAL * INDEX_INTERVAL;
+                channel.position(index[(int) (from / INDEX_INTERVAL)]);
+                BufferedReader reader = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel), StandardCharsets.UTF_8), 1 << 16);
+                for (long row = indexed; row < from; row++) {
+                    reader.readLine();
+                }
+                for (int i = 0; i < count; i++) {
+                    String line = reader.readLine();
+                    if (line == null) break;
+                    rows.add(line);
+                }
+            }
+        } catch (IOException e) {
+            messageSink.enqueueMessage("Failed to read result from disk: " + e.getMessage());
+        }
+    }
+
+    // Tab separated rows become aligned columns, long values are cut at MAX_COLUMN_WIDTH
+    static String format(List<String> rows) {
+        List<String[]> cells = new ArrayList<>(rows.size());
+        int[] widths = new int[0];
+        boolean tabular = false;
+        for (String row : rows) {
+            String[] columns = row.split("\t", -1);
+            tabular |= columns.length > 1;
+            if (columns.length > widths.length) widths = Arrays.copyOf(widths, columns.length);
+            for (int i = 0; i < columns.length; i++) {
+                widths[i] = Math.max(widths[i], Math.min(MAX_COLUMN_WIDTH, columns[i].length()));
+            }
+            cells.add(columns);
+        }
+        if (!tabular) return String.join("\n", rows);
+
+        StringBuilder out = new StringBuilder();
+        for (String[] columns : cells) {
+            if (out.length() > 0) out.append('\n');
+            for (int i = 0; i < columns.length; i++) {
+                String value = columns[i];
+                if (value.length() > MAX_COLUMN_WIDTH) {
+                    value = value.substring(0, MAX_COLUMN_WIDTH - 1) + "~";
+                }
+                out.append(value);
+                if (i < columns.length - 1) {
+                    out.append(" ".repeat(widths[i] - value.length() + 2));
+                }
+            }
+        }
+        return out.toString();
+    }
+}
@@ -0,0 +1,99 @@
+package hello1.koddata.client;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Caps the bytes held by frames waiting to be sent. Frames backed by one buffer count with their size,
+// streamed frames (files, scripts) read from disk as they go and count as nothing.
+// A frame larger than the whole budget is let through once nothing else is waiting, so it cannot get stuck.
+public class SendBudget {
+
+    public enum Policy {
+        // the producer waits until the socket has drained enough
+        BLOCK,
+        // the frame is refused right away
+        FAIL_FAST
+    }
+
+    private final long capacity;
+    private final Policy policy;
+
+    // a ReentrantLock rather than synchronized, a virtual thread waiting on it gives its carrier back
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition drained = lock.newCondition();
+    private long used = 0;
+    private boolean closed = false;
+
+    public SendBudget(long capacity, Policy policy) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("send buffer must be positive");
+        }
+        this.capacity = capacity;
+        this.policy = policy;
+    }
+
+    // Takes bytes out of the budget, false if the frame is refused or the budget was closed while waiting
+    public boolean acquire(long bytes) throws InterruptedException {
+        lock.lock();
+        try {
+            while (!closed && used > 0 && used + bytes > capacity) {
+                if (policy == Policy.FAIL_FAST) return false;
+                drained.await();
+            }
+            if (closed) return false;
+            used += bytes;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // For frames that must go out regardless, they still count against what later frames may use
+    public void forceAcquire(long bytes) {
+        lock.lock();
+        try {
+            used += bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void release(long bytes) {
+        if (bytes == 0) return;
+        lock.lock();
+        try {
+            used -= bytes;
+            drained.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Refuses everything from now on and lets waiting producers go
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            drained.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getUsed() {
+        lock.lock();
+        try {
+            return used;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+}
@@ -1,33 +1,107 @@
 package hello1.koddata.client;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
 
 public class ServerService {
 
-    private TerminalService terminalService;
+    private static final int READ_BUFFER_SIZE = 1 << 20;
+    private static final int MAX_BATCH_FRAMES = 64;
+    private static final int DEFAULT_COMPRESSION_THRESHOLD = 1024;
+    private static final long MIN_RECONNECT_DELAY_MILLIS = 100;
+    private static final long MAX_RECONNECT_DELAY_MILLIS = 30_000;
+    private static final long DEFAULT_SEND_BUFFER_BYTES = 64L << 20;
+    private static final int SPOOL_BATCH = 256;
+    private static final long SPOOL_FORCE_MILLIS = 1000;
+    private static final long SPOOL_ANSWER_TIMEOUT_MILLIS = 60_000;
+
+    private MessageSink messageSink;
 
     private FileState fileState = null;
+    private Path downloadDirectory = Path.of("");
 
     private String host, username, password;
     private int port;
     private long sessionId;
 
-    private Queue<byte[]> sendQueue;
+    private Queue<OutboundFrame> sendQueue;
+    // bounds the memory of everything queued, replayed or in the current batch
+    private SendBudget sendBudget = new SendBudget(DEFAULT_SEND_BUFFER_BYTES, SendBudget.Policy.BLOCK);
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+
+    // login frames, they go out ahead of everything else
+    private final Queue<OutboundFrame> controlQueue = new ConcurrentLinkedQueue<>();
+
+    // frames taken off the queue but not fully written yet, only touched by the send thread
+    private final ArrayDeque<OutboundFrame> batch = new ArrayDeque<>();
+    private final ByteBuffer[] batchBuffers = new ByteBuffer[MAX_BATCH_FRAMES];
+
+    // frames cut off by a lost connection, sent again from the start once the new one is logged in
+    private final ConcurrentLinkedDeque<OutboundFrame> replay = new ConcurrentLinkedDeque<>();
+
+    // one pair of virtual threads per connection, the read thread owns the connection and cleans up after both.
+    // The channel is blocking, a virtual thread blocked on it does not hold a platform thread.
+    private volatile Thread readThread;
+    private volatile Thread sendThread;
+
+    private volatile SocketChannel channel;
+
+    // commands kept on disk until the server answered them, sent by their own thread once logged in
+    private CommandSpool spool;
+    private volatile Thread spoolThread;
+
+    private boolean reconnect = false;
+    private final AtomicBoolean reconnecting = new AtomicBoolean();
+    // while set only control frames are sent, the send queue waits for the login of a new connection
+    private volatile boolean sendPaused = false;
+
+    // reused for every read, direct so socket reads and file writes skip the heap copy
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private final InboundHandler inboundHandler = new InboundHandler();
+    private final FrameDecoder frameDecoder = new FrameDecoder(inboundHandler);
+
+    // requests from submit(), answered in order by the next text frames
+    private final Queue<PendingRequest> pendingResponses = new ConcurrentLinkedQueue<>();
 
-    private Thread sendThread;
-    private Thread readThread;
+    // tagged requests, answered by request id in any order once the server accepted CAP_TAGGED
+    private final ConcurrentHashMap<Long, PendingRequest> taggedResponses = new ConcurrentHashMap<>();
+    private final AtomicLong nextRequestId = new AtomicLong();
 
-    private Socket socket;
-    private InputStream inputStream;
-    private OutputStream outputStream;
+    // resumable uploads by absolute source path, their acknowledged offsets are kept in sidecars next to the
+    // downloads. Changes that depend on what else is in it hold its lock.
+    private final ConcurrentHashMap<String, TransferState> uploads = new ConcurrentHashMap<>();
+
+    private ClientMetrics metrics = new ClientMetrics();
+    private long fileStartedNanos;
+    private long fileStartOffset;
+
+    private int requestedCapabilities = 0;
+    private volatile int capabilities = 0;
+    private int compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
 
     private volatile boolean waitingForLogin = false;
     private CountDownLatch loginLatch;
@@ -43,49 +117,359 @@ public class ServerService {
         this.sessionId = sessionId;
 
         this.sendQueue = new ConcurrentLinkedQueue<>();
-
-        this.readThread = new Thread(this::doRead);
-        this.sendThread = new Thread(this::doSend);
     }
 
     public void start() throws IOException {
         this.running = true;
-        this.socket = new Socket(this.host, this.port);
-        this.inputStream = socket.getInputStream();
-        this.outputStream = socket.getOutputStream();
-        this.readThread.start();
-        this.sendThread.start();
+        connect();
     }
 
+    private void connect() throws IOException {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(this.host, this.port));
+        try {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        this.channel = channel;
+        // a wakeup meant for the previous send thread must not hold back the ones for this one
+        wakeupPending.set(false);
+        this.sendThread = Thread.ofVirtual().name("kd-send " + host + ":" + port).start(this::doSendLoop);
+        this.readThread = Thread.ofVirtual().name("kd-read " + host + ":" + port).start(this::doIo);
+    }
+
+    // Closes the connection and waits until its threads are done, queued frames and waiting requests fail
     public void stop() {
         running = false;
+        sendBudget.close();
+        closeChannel();
+
+        Thread reader = readThread;
+        if (reader != null && reader != Thread.currentThread()) {
+            try {
+                reader.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        OutboundFrame frame;
+        while ((frame = controlQueue.poll()) != null) {
+            releaseFrame(frame, false);
+        }
+        while ((frame = sendQueue.poll()) != null) {
+            releaseFrame(frame, false);
+        }
+        while ((frame = replay.poll()) != null) {
+            releaseFrame(frame, false);
+        }
+
+        failRequests(new IOException("Connection to " + host + ":" + port + " closed"), false);
+
+        CommandSpool spool = this.spool;
+        if (spool != null) {
+            // not an interrupt, that would close the checkpoint file under a drainer writing it
+            spool.close();
+            Thread drainer = spoolThread;
+            if (drainer != null && drainer != Thread.currentThread()) {
+                try {
+                    drainer.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    // Fails the requests still waiting for an answer, or only those whose command was already sent
+    private void failRequests(IOException cause, boolean sentOnly) {
+        synchronized (pendingResponses) {
+            // untagged requests are sent in queue order, the sent ones are at the front
+            while (!pendingResponses.isEmpty() && (!sentOnly || pendingResponses.peek().sent())) {
+                pendingResponses.poll().future.completeExceptionally(cause);
+            }
+        }
+        for (Long requestId : taggedResponses.keySet()) {
+            PendingRequest pending = taggedResponses.get(requestId);
+            if (pending != null && (!sentOnly || pending.sent()) && taggedResponses.remove(requestId, pending)) {
+                pending.future.completeExceptionally(cause);
+            }
+        }
+    }
+
+    // When the connection is lost the service keeps trying to connect again, with exponential backoff, and logs in
+    // to the same session. Queued frames are sent once it is back. Requests that were already sent fail, there is
+    // no telling whether the server ran them.
+    public void enableReconnect() {
+        this.reconnect = true;
+    }
+
+    // Commands passed to spool() are written to segment files in directory first and sent from there in batches,
+    // so the shell keeps accepting them at disk speed while the server is slow or away. Set before start().
+    // Answers arrive through the message sink. Commands the server did not answer before the process ended
+    // are sent again by the next run with the same directory.
+    public void enableSpool(Path directory) throws IOException {
+        this.spool = CommandSpool.open(directory);
+    }
+
+    public boolean isSpooling() {
+        return spool != null;
+    }
+
+    // How many bytes of frames may wait to be sent and what enqueueSend() does when they are used up. Set before start().
+    public void setSendBuffer(long bytes, SendBudget.Policy policy) {
+        this.sendBudget = new SendBudget(bytes, policy);
+    }
+
+    // Where files pushed by the server are saved, the working directory by default
+    public void setDownloadDirectory(Path downloadDirectory) {
+        this.downloadDirectory = downloadDirectory;
+    }
+
+    // Shares one set of counters between several connections, call before start()
+    public void initMetrics(ClientMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public ClientMetrics getMetrics() {
+        return metrics;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public void initMessageSink(MessageSink messageSink) {
+        this.messageSink = messageSink;
+    }
+
+    // Offers tagged commands at login, if the server accepts them submit() can have many commands in flight
+    public void enablePipelining() {
+        requestedCapabilities |= Protocol.CAP_TAGGED;
+    }
+
+    public boolean isPipelined() {
+        return (capabilities & Protocol.CAP_TAGGED) != 0;
+    }
+
+    // Offers deflate at login, if the server accepts it large commands, scripts and uploads are compressed
+    // and the server may compress results and downloads
+    public void enableCompression() {
+        requestedCapabilities |= Protocol.CAP_DEFLATE;
+    }
+
+    public boolean isCompressing() {
+        return (capabilities & Protocol.CAP_DEFLATE) != 0;
+    }
+
+    // Offers resumable transfers at login. Uploads then go out in checksummed chunks the server acknowledges,
+    // downloads keep verified chunks when the connection drops, and both continue after the next login.
+    public void enableResume() {
+        requestedCapabilities |= Protocol.CAP_RESUME;
+    }
+
+    public boolean isResumable() {
+        return (capabilities & Protocol.CAP_RESUME) != 0;
+    }
+
+    // Offers catalog requests at login, see fetchCatalog(). The catalog comes back as a tagged answer,
+    // so this offers pipelining as well.
+    public void enableCatalog() {
+        requestedCapabilities |= Protocol.CAP_CATALOG | Protocol.CAP_TAGGED;
+    }
+
+    public boolean hasCatalog() {
+        return (capabilities & Protocol.CAP_CATALOG) != 0 && isPipelined();
+    }
+
+    // Commands and files smaller than this many bytes are sent as they are
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    // Requests sent through submit() that have not been answered yet
+    public int pendingCount() {
+        return pendingResponses.size() + taggedResponses.size();
+    }
+
+    // Sends the login frame for this service's credentials and session, blocks until the server answers
+    public boolean login() {
+        byte[] usernameBytes = username.getBytes(StandardCharsets.UTF_8);
+        byte[] passwordBytes = password.getBytes(StandardCharsets.UTF_8);
+        // the capability byte is only sent when something is offered, so older servers see the frame they expect
+        int capabilityBytes = requestedCapabilities != 0 ? 1 : 0;
+        ByteBuffer buffer = ByteBuffer.allocate(1 + 4 + usernameBytes.length + 4 + passwordBytes.length + 8 + capabilityBytes);
 
+        buffer.put(Protocol.MODE_LOGIN);
+        buffer.putInt(usernameBytes.length);
+        buffer.put(usernameBytes);
+        buffer.putInt(passwordBytes.length);
+        buffer.put(passwordBytes);
+        buffer.putLong(sessionId);
+        if (capabilityBytes > 0) {
+            buffer.put((byte) requestedCapabilities);
+        }
+
+        boolean success = waitForLogin(buffer.array());
+        if (success && isResumable()) {
+            resumeTransfers();
+        }
+        if (success && spool != null && spoolThread == null) {
+            long waiting = spool.waiting();
+            if (waiting > 0) postMessage("Sending " + waiting + " spooled commands left from before");
+            spoolThread = Thread.ofVirtual().name("kd-spool " + host + ":" + port).start(this::doDrainSpool);
+        }
+        return success;
+    }
+
+    // Appends a command to the spool, false if it could not be written
+    public boolean spool(String command) {
         try {
-            if (socket != null && !socket.isClosed()) {
-                socket.close();
+            spool.append(command);
+            return true;
+        } catch (IOException e) {
+            postMessage("Failed to spool command: " + e.getMessage());
+            return false;
+        }
+    }
+
+    // Spool thread: sends the spooled commands a batch at a time and moves the checkpoint past those answered.
+    // When the connection drops, the commands of the batch not sent yet wait in the send queue and go out after the
+    // reconnect, only those that were sent and lost their answer are submitted again.
+    private void doDrainSpool() {
+        long lastForce = System.nanoTime();
+        try {
+            while (running) {
+                if (System.nanoTime() - lastForce >= SPOOL_FORCE_MILLIS * 1_000_000) {
+                    spool.force();
+                    lastForce = System.nanoTime();
+                }
+
+                List<String> commands = spool.next(SPOOL_BATCH, SPOOL_FORCE_MILLIS, TimeUnit.MILLISECONDS);
+                if (commands.isEmpty()) continue;
+
+                List<CompletableFuture<String>> answers = new ArrayList<>(commands.size());
+                for (String command : commands) {
+                    answers.add(submit(command));
+                }
+
+                // the checkpoint only moves past a run of answered commands, acked counts those from the start
+                boolean[] answered = new boolean[commands.size()];
+                int acked = 0;
+                while (acked < commands.size() && running) {
+                    boolean lost = false;
+                    for (int i = acked; i < commands.size(); i++) {
+                        if (answered[i]) continue;
+                        String answer = awaitSpoolAnswer(answers.get(i));
+                        if (answer != null) {
+                            postMessage(answer);
+                            answered[i] = true;
+                        } else {
+                            lost = true;
+                        }
+                    }
+
+                    int from = acked;
+                    while (acked < commands.size() && answered[acked]) acked++;
+                    spool.ack(acked - from);
+
+                    if (lost && running) {
+                        // the connection is coming back, this only spaces out the retries
+                        Thread.sleep(MIN_RECONNECT_DELAY_MILLIS);
+                        for (int i = acked; i < commands.size(); i++) {
+                            if (!answered[i]) answers.set(i, submit(commands.get(i)));
+                        }
+                    }
+                }
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } catch (IOException e) {
-            e.printStackTrace();
+            postMessage("Spool failed, commands stay in it for the next run: " + e.getMessage());
+        } finally {
+            spool.close();
         }
+    }
 
-        if (readThread != null && readThread.isAlive()) {
-            readThread.interrupt();
+    // The answer, or null if the command failed or was not answered within SPOOL_ANSWER_TIMEOUT_MILLIS
+    private String awaitSpoolAnswer(CompletableFuture<String> answer) throws InterruptedException {
+        try {
+            return answer.get(SPOOL_ANSWER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            return null;
+        } catch (TimeoutException e) {
+            // a late answer to it is dropped, the command is sent again like one whose answer was lost
+            answer.cancel(false);
+            postMessage("No answer to a spooled command after " + SPOOL_ANSWER_TIMEOUT_MILLIS / 1000 + " s, sending it again");
+            return null;
         }
-        if (sendThread != null && sendThread.isAlive()) {
-            sendThread.interrupt();
+    }
+
+    // Picks up the transfers an earlier connection left unfinished, found by their sidecars in the download directory
+    private void resumeTransfers() {
+        try (Stream<Path> files = Files.list(downloadDirectory.toAbsolutePath())) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String fileName = file.getFileName().toString();
+                if (fileName.endsWith(TransferState.DOWNLOAD_SUFFIX)) {
+                    String name = fileName.substring(0, fileName.length() - TransferState.DOWNLOAD_SUFFIX.length());
+                    long offset = FileState.verifiedOffset(downloadDirectory, name);
+                    enqueueResume(new BytesFrame(encodeResumeDownload(name, offset)));
+                    postMessage("Resuming download: " + name + " from byte " + offset);
+                } else if (fileName.endsWith(TransferState.UPLOAD_SUFFIX)) {
+                    resumeUpload(TransferState.load(file));
+                }
+            }
+        } catch (IOException e) {
+            postMessage("Failed to resume transfers: " + e.getMessage());
+        }
+    }
+
+    private void resumeUpload(TransferState state) throws IOException {
+        if (state == null || state.source == null) return;
+        ChunkedUploadFrame frame;
+        synchronized (uploads) {
+            TransferState current = uploads.get(state.source);
+            if (current != null) {
+                // a frame still on its way continues by itself after a rewind
+                if (current.sending) return;
+                state = current;
+            }
+            // the server acknowledges by name only, another unfinished file of that name gets the acks
+            TransferState named = unfinishedUpload(state.name);
+            if (named != null && named != state) return;
+
+            Path source = Path.of(state.source);
+            if (!Files.isRegularFile(source) || Files.size(source) != state.size
+                    || Files.getLastModifiedTime(source).toMillis() != state.sourceModified) {
+                // the file changed since, the server has to get it again from the start
+                uploads.remove(state.source, state);
+                state.delete();
+                return;
+            }
+            uploads.put(state.source, state);
+            frame = new ChunkedUploadFrame(source, state, isCompressing());
         }
+        enqueueResume(frame);
+        postMessage("Resuming upload: " + state.name + " from byte " + state.offset);
     }
 
-    public void initTerminalService(TerminalService terminalService) {
-        this.terminalService = terminalService;
+    // The upload of that name the server has not acknowledged completely, null if there is none. There is at
+    // most one, acknowledgments carry only the name. Caller holds uploads.
+    private TransferState unfinishedUpload(String name) {
+        for (TransferState state : uploads.values()) {
+            if (state.name.equals(name)) return state;
+        }
+        return null;
     }
 
     public boolean waitForLogin(byte[] array) {
         if (waitingForLogin) return false;
-        enqueueSend(array);
-        waitingForLogin = true;
         loginLatch = new CountDownLatch(1);
         loginSuccess = null;
+        waitingForLogin = true;
+        frameDecoder.expectLoginResponse();
+        enqueueControl(new BytesFrame(array));
 
         try {
             loginLatch.await();
@@ -99,111 +483,376 @@ public class ServerService {
         return Boolean.TRUE.equals(loginSuccess);
     }
 
-    private void doRead() {
-        byte[] buffer = new byte[1000000];
+    private void closeChannel() {
+        SocketChannel channel = this.channel;
+        try {
+            if (channel != null && channel.isOpen()) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
+    // Read thread: decodes until the connection ends, then stops the send thread and cleans up for both
+    private void doIo() {
         try {
             while (running) {
-                int readBytes = inputStream.read(buffer);
-                if (readBytes == -1) break;
-
-                if (fileState != null) {
-                    // append only the valid readBytes
-                    fileState.receivedBuffer.put(buffer, 0, readBytes);
-                    fileState.receivedBytes += readBytes;
-
-                    // finished?
-                    if (!fileState.receivedBuffer.hasRemaining()) {
-                        fileState.doSave();
-                        terminalService.enqueueMessage("File saved: " + fileState.name);
-                        fileState = null;
-                    }
+                if (!doRead()) break;
+            }
+        } catch (IOException e) {
+            if (running && !reconnect) e.printStackTrace();
+        } finally {
+            // a send thread blocked in a write is released by the close, an idle one by the interrupt
+            closeChannel();
+            Thread sender = sendThread;
+            sender.interrupt();
+            try {
+                sender.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            if (fileState != null) {
+                if (isResumable()) fileState.suspend();
+                else fileState.abort();
+                fileState = null;
+            }
+            if (waitingForLogin) {
+                loginLatch.countDown(); // connection is gone, loginSuccess stays null
+            }
+
+            if (running && reconnect) {
+                disconnected();
+            } else {
+                OutboundFrame frame;
+                while ((frame = batch.poll()) != null) {
+                    releaseFrame(frame, false);
+                }
+                stop();
+            }
+        }
+    }
+
+    // Runs on the read thread of the lost connection once its send thread is done, the next pair starts clean
+    private void disconnected() {
+        frameDecoder.reset();
+        inboundHandler.reset();
+        readBuffer.clear();
 
+        // frames that were cut off start over, ahead of anything queued after them
+        sendPaused = true;
+        OutboundFrame frame;
+        while ((frame = batch.pollLast()) != null) {
+            boolean rewound;
+            try {
+                rewound = frame.rewind();
+            } catch (IOException e) {
+                rewound = false;
+            }
+            if (rewound) replay.addFirst(frame);
+            else releaseFrame(frame, false);
+        }
+
+        failRequests(new IOException("Connection to " + host + ":" + port + " lost before the answer arrived"), true);
+
+        if (reconnecting.compareAndSet(false, true)) {
+            postMessage("Connection to " + host + ":" + port + " lost, reconnecting");
+            Thread.ofVirtual().name("kd-reconnect " + host + ":" + port).start(this::doReconnect);
+        }
+    }
+
+    private void doReconnect() {
+        long delay = MIN_RECONNECT_DELAY_MILLIS;
+        try {
+            while (running) {
+                // jitter keeps a pool of connections from hammering a restarted server in lockstep
+                Thread.sleep(delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1));
+                delay = Math.min(delay * 2, MAX_RECONNECT_DELAY_MILLIS);
+                if (!running) return;
+
+                try {
+                    connect();
+                } catch (IOException e) {
                     continue;
                 }
 
-                // normal packet handling
-                if (readBytes > 0) {
-                    byte[] data = new byte[readBytes];
-                    System.arraycopy(buffer, 0, data, 0, readBytes);
-                    // login response
-                    if (waitingForLogin) {
-                        byte loginByte = data[0];
-                        loginSuccess = loginByte != 2;
-                        ByteBuffer byteBuf = ByteBuffer.wrap(data);
-                        byteBuf.get();
-                        sessionId = byteBuf.getInt();
-                        loginLatch.countDown();
-                    }
+                if (login()) {
+                    sendPaused = false;
+                    reconnecting.set(false);
+                    wakeup();
+                    postMessage("Reconnected to " + host + ":" + port + ", session " + sessionId);
+                    return;
+                }
+                if (loginSuccess != null) {
+                    postMessage("Reconnect to " + host + ":" + port + " was rejected, giving up");
+                    stop();
+                    return;
+                }
+                // the new connection dropped during the login, try again
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
-                    // file header starts with 'K' 'D'
-                    if (data[0] == 'K' && data[1] == 'D') {
-                        ByteBuffer buf = ByteBuffer.wrap(data);
-                        buf.get(); buf.get(); // skip 'K','D'
+    // Blocks until the socket has data and decodes it, returns false once the server closed the connection
+    private boolean doRead() throws IOException {
+        int readBytes = channel.read(readBuffer);
+        if (readBytes < 0) return false;
+        metrics.bytesIn.add(readBytes);
+        readBuffer.flip();
+        frameDecoder.decode(readBuffer);
+        readBuffer.compact(); // keeps a partial header for the next read
+        return true;
+    }
 
-                        int nameSize = buf.getInt();
-                        byte[] nameBytes = new byte[nameSize];
-                        buf.get(nameBytes);
+    private class InboundHandler implements FrameDecoder.Handler {
 
-                        int dataSize = buf.getInt();   // FULL file size
+        private final TextDecoder textDecoder = new TextDecoder();
+        private long requestId = -1;
 
-                        // first chunk of file
-                        byte[] firstChunk = new byte[buf.remaining()];
-                        buf.get(firstChunk);
+        // set while a large text frame nobody waits for goes straight to the message sink,
+        // or while the answer to a request that asked for a stream comes in
+        private ResultStream resultStream;
+        private boolean streamingRequest = false;
 
-                        // initialize receiver
-                        fileState = new FileState();
-                        fileState.name = new String(nameBytes, StandardCharsets.UTF_8);
-                        fileState.expectedBytes = dataSize;
-                        fileState.receivedBuffer = ByteBuffer.allocate(dataSize);
+        // drops a text frame the lost connection cut off
+        void reset() {
+            textDecoder.finish();
+            requestId = -1;
+            if (resultStream != null) {
+                resultStream.close(false);
+                resultStream = null;
+            }
+            streamingRequest = false;
+        }
 
-                        // store first chunk
-                        fileState.receivedBuffer.put(firstChunk);
-                        fileState.receivedBytes = firstChunk.length;
+        @Override
+        public void onLoginResponse(byte status, long newSessionId, int acceptedCapabilities) {
+            metrics.onResponseFrame();
+            loginSuccess = status != Protocol.LOGIN_FAILED;
+            sessionId = newSessionId;
+            capabilities = acceptedCapabilities & requestedCapabilities;
+            loginLatch.countDown();
+        }
 
-                        // immediately done?
-                        if (!fileState.receivedBuffer.hasRemaining()) {
-                            fileState.doSave();
-                            terminalService.enqueueMessage("File saved immediately: " + fileState.name);
-                            fileState = null;
-                        }
+        @Override
+        public void onTextStart(long length, long requestId) {
+            metrics.onResponseFrame();
+            this.requestId = requestId;
 
-                        continue;
-                    }
+            PendingRequest awaited = requestId >= 0 ? taggedResponses.get(requestId) : pendingResponses.peek();
+            if (awaited != null && awaited.stream != null) {
+                resultStream = awaited.stream;
+                streamingRequest = true;
+            } else if (awaited != null && awaited.paged && length >= 0 && messageSink != null) {
+                resultStream = messageSink.openResult(length);
+                streamingRequest = resultStream != null;
+            } else if (awaited == null && length >= 0 && messageSink != null) {
+                resultStream = messageSink.openResult(length);
+            }
+        }
 
-                    // fallback normal text message
-                    if (terminalService != null) {
-                        terminalService.enqueueMessage(new String(data, StandardCharsets.UTF_8));
-                    }
+        @Override
+        public void onTextData(ByteBuffer data) {
+            if (resultStream != null) resultStream.write(data);
+            else textDecoder.append(data);
+        }
+
+        @Override
+        public void onTextEnd() {
+            if (resultStream != null) {
+                resultStream.close(true);
+                resultStream = null;
+                if (streamingRequest) {
+                    streamingRequest = false;
+                    PendingRequest pending = requestId >= 0 ? taggedResponses.remove(requestId) : pendingResponses.poll();
+                    if (pending != null) pending.future.complete(pending.stream != null ? "" : null);
                 }
+                return;
+            }
+
+            String message = textDecoder.finish();
+            PendingRequest pending = requestId >= 0
+                    ? taggedResponses.remove(requestId)
+                    : pendingResponses.poll();
+            if (pending != null) {
+                pending.future.complete(message);
+            } else {
+                postMessage(message);
             }
-        } catch (IOException e) {
-            if (running) e.printStackTrace();
-        } finally {
-            stop();
         }
-    }
 
+        @Override
+        public void onFileStart(String name, long size) {
+            metrics.onResponseFrame();
+            fileStartedNanos = System.nanoTime();
+            fileStartOffset = 0;
+            fileState = new FileState(downloadDirectory, name, size);
+            if (isResumable()) fileState.enableCheckpoints();
+        }
+
+        @Override
+        public void onFileResume(String name, long size, long offset) {
+            metrics.onResponseFrame();
+            fileStartedNanos = System.nanoTime();
+            fileStartOffset = offset;
+            fileState = new FileState(downloadDirectory, name, size, offset);
+        }
+
+        @Override
+        public void onUploadAck(String name, long offset) {
+            TransferState state;
+            synchronized (uploads) {
+                state = unfinishedUpload(name);
+            }
+            if (state == null) return;
+
+            state.offset = offset;
+            if (offset >= state.size) {
+                uploads.remove(state.source, state);
+                state.delete();
+                return;
+            }
+            try {
+                state.save();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        @Override
+        public void onFileData(ByteBuffer data) {
+            // file payload goes straight to disk
+            fileState.receive(data);
+        }
+
+        @Override
+        public void onFileEnd() {
+            try {
+                fileState.doSave();
+                metrics.onDownload(fileState.receivedBytes - fileStartOffset, System.nanoTime() - fileStartedNanos);
+                postMessage("File saved: " + fileState.name);
+            } catch (IOException e) {
+                postMessage("Failed to save file: " + fileState.name + " (" + e.getMessage() + ")");
+            }
+            fileState = null;
+        }
+    }
 
-    private void doSend() {
+    // Send thread: parks while there is nothing to send, wakeup() hands it new work.
+    // A blocked write or lock parks too and can use up the unpark, so the flag decides whether there is work.
+    private void doSendLoop() {
         try {
             while (running) {
-                byte[] buffer = sendQueue.poll();
-
-                if (buffer != null) {
-                    outputStream.write(buffer);
-                    outputStream.flush();
-                } else {
-                    // Avoid busy wait
-                    Thread.sleep(50);
+                doSend();
+                while (!wakeupPending.get()) {
+                    LockSupport.park(this);
+                    if (Thread.interrupted()) return;
                 }
             }
-        } catch (IOException | InterruptedException e) {
-            if (running) {
-                e.printStackTrace();
+        } catch (IOException e) {
+            // the read thread sees the closed channel and cleans up
+            closeChannel();
+        }
+    }
+
+    // Writes queued frames until the queue is empty, a full socket buffer blocks only this thread.
+    // Runs of plain byte frames are written together with one gathering write.
+    private void doSend() throws IOException {
+        wakeupPending.set(false);
+
+        while (true) {
+            if (batch.isEmpty()) {
+                OutboundFrame next = controlQueue.poll();
+                if (next == null && !sendPaused) {
+                    next = replay.poll();
+                    if (next == null) next = sendQueue.poll();
+                }
+                if (next == null) break;
+                batch.add(next);
             }
-        } finally {
-            stop();
+
+            // a write can return after part of the data, the loop goes on with the rest
+            if (batch.peekFirst().buffer() != null) writeBatch();
+            else writeStreamed();
+        }
+    }
+
+    private void writeBatch() throws IOException {
+        // top the batch up with whatever buffer frames are queued behind it, unless something has to go first
+        while (batch.size() < MAX_BATCH_FRAMES && !sendPaused && replay.isEmpty()) {
+            OutboundFrame next = sendQueue.peek();
+            if (next == null || next.buffer() == null) break;
+            batch.add(sendQueue.poll());
+        }
+
+        int count = 0;
+        for (OutboundFrame frame : batch) {
+            batchBuffers[count++] = frame.buffer();
+        }
+        channel.write(batchBuffers, 0, count);
+        Arrays.fill(batchBuffers, 0, count, null);
+
+        while (!batch.isEmpty() && !batch.peekFirst().buffer().hasRemaining()) {
+            releaseFrame(batch.pollFirst(), true);
+        }
+    }
+
+    // The inverse of admit(), gives the frame's bytes back to the send budget
+    private void releaseFrame(OutboundFrame frame, boolean written) {
+        long charge = charge(frame);
+        metrics.sendQueueDepth.decrement();
+        metrics.sendQueueBytes.add(-charge);
+        if (written) {
+            metrics.framesOut.increment();
+            metrics.bytesOut.add(frame.size());
+        }
+        sendBudget.release(charge);
+        frame.release();
+    }
+
+    private static long charge(OutboundFrame frame) {
+        return frame.charge();
+    }
+
+    // Takes the frame's bytes out of the send budget, blocking or refusing when it is used up.
+    // A refused frame is released, for a TrackedFrame that fails done().
+    private boolean admit(OutboundFrame frame) {
+        boolean admitted;
+        try {
+            admitted = sendBudget.acquire(charge(frame));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            admitted = false;
+        }
+        if (!admitted) {
+            metrics.rejectedFrames.increment();
+            frame.release();
+            return false;
+        }
+        metrics.sendQueueDepth.increment();
+        metrics.sendQueueBytes.add(charge(frame));
+        return true;
+    }
+
+    private void forceAdmit(OutboundFrame frame) {
+        sendBudget.forceAcquire(charge(frame));
+        metrics.sendQueueDepth.increment();
+        metrics.sendQueueBytes.add(charge(frame));
+    }
+
+    private void writeStreamed() throws IOException {
+        OutboundFrame frame = batch.peekFirst();
+        if (frame.writeTo(channel)) {
+            releaseFrame(batch.pollFirst(), true);
+        }
+    }
+
+    private void postMessage(String message) {
+        if (messageSink != null) {
+            messageSink.enqueueMessage(message);
         }
     }
 
@@ -211,7 +860,285 @@ public class ServerService {
         return sessionId;
     }
 
-    public void enqueueSend(byte[] buffer) {
-        this.sendQueue.offer(buffer);
+    public static byte[] encodeCommand(byte[] body) {
+        byte[] frame = new byte[body.length + 1];
+        frame[0] = Protocol.MODE_COMMAND;
+        System.arraycopy(body, 0, frame, 1, body.length);
+        return frame;
+    }
+
+    public static byte[] encodeResumeDownload(String name, long offset) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = ByteBuffer.allocate(1 + 4 + nameBytes.length + 8);
+        frame.put(Protocol.MODE_RESUME_DOWNLOAD);
+        frame.putInt(nameBytes.length);
+        frame.put(nameBytes);
+        frame.putLong(offset);
+        return frame.array();
+    }
+
+    // Plain commands are encoded straight into a pooled buffer, no intermediate arrays
+    public OutboundFrame commandFrame(String command) {
+        if (isCompressing() && command.length() >= compressionThreshold) {
+            return DeflateFrame.command(command.getBytes(StandardCharsets.UTF_8));
+        }
+        return pooledCommandFrame(-1, command);
+    }
+
+    // mode(1) body for a command, mode(1) requestId(8) length(4) body for a tagged one
+    private static BytesFrame pooledCommandFrame(long requestId, String command) {
+        boolean tagged = requestId >= 0;
+        int headerSize = tagged ? 1 + 8 + 4 : 1;
+        BufferPool pool = BufferPool.shared();
+        // UTF-8 needs at most three bytes per char, a surrogate pair takes four for its two chars
+        ByteBuffer buffer = pool.acquire(headerSize + command.length() * 3);
+        if (tagged) {
+            buffer.put(Protocol.MODE_TAGGED_COMMAND).putLong(requestId).putInt(0);
+        } else {
+            buffer.put(Protocol.MODE_COMMAND);
+        }
+        putUtf8(buffer, command);
+        if (tagged) {
+            buffer.putInt(1 + 8, buffer.position() - headerSize);
+        }
+        buffer.flip();
+        return new BytesFrame(buffer, pool);
+    }
+
+    // Same bytes as String.getBytes(UTF_8), an unpaired surrogate becomes '?'
+    static void putUtf8(ByteBuffer buffer, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                buffer.put((byte) c);
+            } else if (c < 0x800) {
+                buffer.put((byte) (0xC0 | c >> 6));
+                buffer.put((byte) (0x80 | c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                buffer.put((byte) (0xF0 | codePoint >> 18));
+                buffer.put((byte) (0x80 | codePoint >> 12 & 0x3F));
+                buffer.put((byte) (0x80 | codePoint >> 6 & 0x3F));
+                buffer.put((byte) (0x80 | codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                buffer.put((byte) '?');
+            } else {
+                buffer.put((byte) (0xE0 | c >> 12));
+                buffer.put((byte) (0x80 | c >> 6 & 0x3F));
+                buffer.put((byte) (0x80 | c & 0x3F));
+            }
+        }
+    }
+
+    public OutboundFrame commandFrame(byte[] body) {
+        if (isCompressing() && body.length >= compressionThreshold) {
+            return DeflateFrame.command(body);
+        }
+        return new BytesFrame(encodeCommand(body));
+    }
+
+    // A script file sent as one command. Compressed scripts are streamed from disk, plain ones are read up front.
+    public OutboundFrame scriptFrame(Path path) throws IOException {
+        if (isCompressing() && Files.size(path) >= compressionThreshold) {
+            return DeflateFrame.script(path);
+        }
+        return new BytesFrame(encodeCommand(Files.readAllBytes(path)));
+    }
+
+    public OutboundFrame uploadFrame(Path path) throws IOException {
+        if (isResumable()) {
+            return resumableUploadFrame(path);
+        }
+        if (isCompressing() && Files.size(path) >= compressionThreshold) {
+            return DeflateFrame.upload(path);
+        }
+        return new FileUploadFrame(path);
+    }
+
+    // Continues where an earlier upload of the same unchanged file was acknowledged, if there was one
+    private OutboundFrame resumableUploadFrame(Path path) throws IOException {
+        String name = path.getFileName().toString();
+        String source = path.toAbsolutePath().normalize().toString();
+        long size = Files.size(path);
+        long modified = Files.getLastModifiedTime(path).toMillis();
+
+        synchronized (uploads) {
+            TransferState state = unfinishedUpload(name);
+            if (state != null && !state.source.equals(source)) {
+                // acknowledgments carry only the name, the server could not tell the two apart
+                throw new IOException("the upload of another file named " + name + " is unfinished (" + state.source + ")");
+            }
+            if (state != null && state.sending) throw new IOException("already being uploaded");
+
+            Path statePath = TransferState.uploadStatePath(downloadDirectory, name, source);
+            if (state == null) state = TransferState.load(statePath);
+            if (state == null || !source.equals(state.source) || state.size != size || state.sourceModified != modified) {
+                state = new TransferState(statePath, name, size, source, modified, ChunkedUploadFrame.CHUNK_SIZE);
+                state.save();
+            }
+            uploads.put(source, state);
+            return new ChunkedUploadFrame(path, state, isCompressing());
+        }
+    }
+
+    // Sends a command and completes with the server's answer to it.
+    // Tagged commands are matched by request id. Without CAP_TAGGED responses are matched in order,
+    // so a connection used this way should not also carry fire-and-forget commands.
+    public CompletableFuture<String> submit(String command) {
+        return submit(command, null);
+    }
+
+    // As submit(String), with the answer written to stream as it arrives instead of collected. The future
+    // completes with an empty string once the stream is closed, or fails without the stream being closed.
+    public CompletableFuture<String> submit(String command, ResultStream stream) {
+        return submit(command, stream, false);
+    }
+
+    // As submit(String), but an answer large enough that the message sink opens a result stream for it goes
+    // there, like large output that answers no request. The future then completes with null once it is in.
+    public CompletableFuture<String> submitPaged(String command) {
+        return submit(command, null, true);
+    }
+
+    private CompletableFuture<String> submit(String command, ResultStream stream, boolean paged) {
+        CompletableFuture<String> future = new CompletableFuture<>();
+
+        long submittedAt = System.nanoTime();
+        future.whenComplete((response, error) -> {
+            if (error == null) metrics.requestLatency.record(System.nanoTime() - submittedAt);
+        });
+
+        if (isPipelined()) {
+            long requestId = nextRequestId.getAndIncrement();
+            // there is no compressed tagged mode, tagged commands always go out as they are
+            TrackedFrame frame = new TrackedFrame(pooledCommandFrame(requestId, command));
+            taggedResponses.put(requestId, new PendingRequest(future, frame, stream, paged));
+            if (!running) {
+                taggedResponses.remove(requestId);
+                frame.release();
+                future.completeExceptionally(new IOException("Not connected to " + host + ":" + port));
+                return future;
+            }
+            if (!enqueueSend(frame)) {
+                taggedResponses.remove(requestId);
+                future.completeExceptionally(sendBufferFull());
+            }
+            return future;
+        }
+
+        TrackedFrame frame = new TrackedFrame(commandFrame(command));
+        // waits for room before taking the lock, a blocked producer must not hold up failRequests()
+        if (!admit(frame)) {
+            future.completeExceptionally(sendBufferFull());
+            return future;
+        }
+
+        // queue order has to match send order
+        synchronized (pendingResponses) {
+            if (!running) {
+                releaseFrame(frame, false);
+                future.completeExceptionally(new IOException("Not connected to " + host + ":" + port));
+                return future;
+            }
+            pendingResponses.offer(new PendingRequest(future, frame, stream, paged));
+            queue(frame);
+        }
+        return future;
+    }
+
+    // Asks for the names the server knows, the changes after sinceVersion or all of them for 0.
+    // Completes with the answer in the format described at Protocol.MODE_CATALOG. Never waits for room in the
+    // send buffer, the request is tiny and callers are on the input path.
+    public CompletableFuture<String> fetchCatalog(long sinceVersion) {
+        CompletableFuture<String> future = new CompletableFuture<>();
+        if (!hasCatalog()) {
+            future.completeExceptionally(new IOException("Server at " + host + ":" + port + " offers no catalog"));
+            return future;
+        }
+
+        long requestId = nextRequestId.getAndIncrement();
+        ByteBuffer buffer = ByteBuffer.allocate(1 + 8 + 8);
+        buffer.put(Protocol.MODE_CATALOG).putLong(requestId).putLong(sinceVersion).flip();
+        TrackedFrame frame = new TrackedFrame(new BytesFrame(buffer.array()));
+        taggedResponses.put(requestId, new PendingRequest(future, frame, null, false));
+        if (!running) {
+            taggedResponses.remove(requestId);
+            frame.release();
+            future.completeExceptionally(new IOException("Not connected to " + host + ":" + port));
+            return future;
+        }
+        // in queue order, so it goes out after the command that changed the catalog
+        forceAdmit(frame);
+        queue(frame);
+        return future;
+    }
+
+    private IOException sendBufferFull() {
+        return new IOException(running
+                ? "Send buffer full (" + sendBudget.getCapacity() + " bytes), command not sent"
+                : "Not connected to " + host + ":" + port);
+    }
+
+    public boolean enqueueSend(byte[] buffer) {
+        return enqueueSend(new BytesFrame(buffer));
+    }
+
+    // Queues the frame within the send budget. Returns false if it was refused (FAIL_FAST with the budget
+    // used up, or the service stopped), the frame is released then.
+    public boolean enqueueSend(OutboundFrame frame) {
+        if (!admit(frame)) return false;
+        queue(frame);
+        return true;
+    }
+
+    private void queue(OutboundFrame frame) {
+        metrics.onSend();
+        this.sendQueue.offer(frame);
+        wakeup();
+    }
+
+    // Resumed transfers are queued during login, before the send queue drains again, so they must not wait for room
+    private void enqueueResume(OutboundFrame frame) {
+        forceAdmit(frame);
+        queue(frame);
+    }
+
+    private void enqueueControl(OutboundFrame frame) {
+        forceAdmit(frame);
+        metrics.onSend();
+        this.controlQueue.offer(frame);
+        wakeup();
+    }
+
+    private void wakeup() {
+        Thread sender = this.sendThread;
+        // one wakeup is enough until the send thread has drained the queue again
+        if (sender != null && wakeupPending.compareAndSet(false, true)) {
+            LockSupport.unpark(sender);
+        }
+    }
+
+    // A request waiting for its answer, with the frame that carries its command
+    private static final class PendingRequest {
+
+        final CompletableFuture<String> future;
+        final TrackedFrame frame;
+        // null unless the answer is streamed rather than collected
+        final ResultStream stream;
+        // a large answer goes to the message sink's result stream, see submitPaged()
+        final boolean paged;
+
+        PendingRequest(CompletableFuture<String> future, TrackedFrame frame, ResultStream stream, boolean paged) {
+            this.future = future;
+            this.frame = frame;
+            this.stream = stream;
+            this.paged = paged;
+        }
+
+        // true once the command has left the socket
+        boolean sent() {
+            CompletableFuture<Void> done = frame.done();
+            return done.isDone() && !done.isCompletedExceptionally();
+        }
     }
 }
@@ -0,0 +1,54 @@
+package hello1.koddata.client;
+
+import java.io.IOException;
+import java.io.Reader;
+
+// Splits a script into statements on ';' while reading it, quoted ';' does not end a statement
+public class StatementReader {
+
+    private final Reader reader;
+    private final char[] buffer = new char[8192];
+    private int position = 0;
+    private int limit = 0;
+
+    private final StringBuilder statement = new StringBuilder();
+
+    public StatementReader(Reader reader) {
+        this.reader = reader;
+    }
+
+    // Next statement including its ';', or the unterminated tail of the script. Null at the end of the input.
+    public String next() throws IOException {
+        char quote = 0;
+        boolean escaped = false;
+
+        while (true) {
+            if (position == limit) {
+                limit = reader.read(buffer);
+                position = 0;
+                if (limit <= 0) {
+                    limit = 0;
+                    String tail = statement.toString();
+                    statement.setLength(0);
+                    return tail.isBlank() ? null : tail.trim();
+                }
+            }
+
+            char c = buffer[position++];
+            statement.append(c);
+
+            if (escaped) {
+                escaped = false;
+            } else if (quote != 0) {
+                if (c == '\\') escaped = true;
+                else if (c == quote) quote = 0;
+            } else if (c == '"' || c == '\'') {
+                quote = c;
+            } else if (c == ';') {
+                String result = statement.toString().trim();
+                statement.setLength(0);
+                if (!result.equals(";")) return result;
+            }
+        }
+    }
+}
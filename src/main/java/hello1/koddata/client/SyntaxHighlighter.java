@@ -6,104 +6,257 @@ import org.jline.utils.AttributedString;
 import org.jline.utils.AttributedStringBuilder;
 import org.jline.utils.AttributedStyle;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Arrays;
 
+// Single pass lexer, styled in priority order strings > numbers > $variables > keywords.
+// A whitespace separated run that contains a string, number or variable is not a keyword as a whole.
+// Runs are cached between calls so a keystroke only re-lexes from the last run the edit could affect.
 public class SyntaxHighlighter implements Highlighter {
-    private final Pattern VARNAME = Pattern.compile("\\$\\S+");
 
-    private final Pattern KEYWORDS = Pattern.compile("\\S+");
+    private static final AttributedStyle STRING_STYLE = AttributedStyle.DEFAULT.foreground(AttributedStyle.RED);
+    private static final AttributedStyle NUMBER_STYLE = AttributedStyle.DEFAULT.foreground(AttributedStyle.CYAN);
+    private static final AttributedStyle VARNAME_STYLE = AttributedStyle.DEFAULT.foreground(AttributedStyle.YELLOW);
+    private static final AttributedStyle KEYWORD_STYLE = AttributedStyle.BOLD.foreground(AttributedStyle.GREEN);
+    // a $variable the catalog does not know, likely a typo
+    private static final AttributedStyle UNKNOWN_VARNAME_STYLE = VARNAME_STYLE.underline();
 
-    private final Pattern STRINGS =
-            Pattern.compile("\"[^\"\\\\]*(\\\\.[^\"\\\\]*)*\"|'[^'\\\\]*(\\\\.[^'\\\\]*)*'");
+    private static final int STRING = 0;
+    private static final int NUMBER = 1;
+    private static final int VARNAME = 2;
+    private static final int KEYWORD = 3;
 
-    private final Pattern NUMBERS = Pattern.compile("\\b\\d+(\\.\\d+)?\\b");
+    private static final AttributedStyle[] STYLES = {STRING_STYLE, NUMBER_STYLE, VARNAME_STYLE, KEYWORD_STYLE};
 
+    // tokens, three ints each: start, end, kind
+    private int[] tokens = new int[64];
+    private int tokenCount;
+
+    // runs, four ints each: start, end, token count after the run, 1 if the run can be reused
+    private int[] runs = new int[64];
+    private int runCount;
+
+    private String lastBuffer = "";
+
+    // null without a server catalog, variables are then styled without checking them
+    private final CatalogCache catalog;
+
+    // lowest position from which no closing quote exists, per quote kind, valid for one lex pass
+    private int noClosingDouble;
+    private int noClosingSingle;
+
+    public SyntaxHighlighter() {
+        this(null);
+    }
+
+    public SyntaxHighlighter(CatalogCache catalog) {
+        this.catalog = catalog;
+    }
 
     @Override
-    public AttributedString highlight(LineReader reader, String buffer) {
-        AttributedStringBuilder builder = new AttributedStringBuilder();
-        boolean[] highlighted = new boolean[buffer.length()];
+    public synchronized AttributedString highlight(LineReader reader, String buffer) {
+        lex(buffer);
+        // styles are looked up here rather than stored with the tokens, so cached runs pick up catalog changes
+        boolean checkVariables = false;
+        if (catalog != null) {
+            catalog.refreshIfStale();
+            checkVariables = catalog.isLoaded();
+        }
+
+        AttributedStringBuilder builder = new AttributedStringBuilder(buffer.length());
+        int pos = 0;
+        for (int i = 0; i < tokenCount; i++) {
+            int start = tokens[i * 3];
+            int end = tokens[i * 3 + 1];
+            if (start > pos) {
+                builder.append(buffer, pos, start);
+            }
+            int kind = tokens[i * 3 + 2];
+            builder.style(kind == VARNAME && checkVariables && !knownVariable(buffer, start, end)
+                    ? UNKNOWN_VARNAME_STYLE : STYLES[kind]);
+            builder.append(buffer, start, end);
+            builder.style(AttributedStyle.DEFAULT);
+            pos = end;
+        }
+        if (pos < buffer.length()) {
+            builder.append(buffer, pos, buffer.length());
+        }
+        return builder.toAttributedString();
+    }
 
-        // Mark all matches in priority order (don't build yet)
-        markPattern(buffer, highlighted, STRINGS);
-        markPattern(buffer, highlighted, NUMBERS);
-        markPattern(buffer, highlighted, VARNAME);
-        markPattern(buffer, highlighted, KEYWORDS);
+    private void lex(String buffer) {
+        int prefix = commonPrefix(lastBuffer, buffer);
 
-        // Now build the output left to right
-        int i = 0;
-        while (i < buffer.length()) {
-            if (highlighted[i]) {
-                // Find the style for this highlighted region
-                AttributedStyle style = getStyleAt(buffer, i);
-                int start = i;
-                while (i < buffer.length() && highlighted[i]) {
-                    i++;
-                }
-                builder.styled(style, buffer.substring(start, i));
+        // keep runs that ended before the edit, the character terminating them must be unchanged too
+        int keep = 0;
+        while (keep < runCount && runs[keep * 4 + 1] < prefix && runs[keep * 4 + 3] == 1) {
+            keep++;
+        }
+        runCount = keep;
+        tokenCount = keep == 0 ? 0 : runs[(keep - 1) * 4 + 2];
+        int pos = keep == 0 ? 0 : runs[(keep - 1) * 4 + 1];
+
+        noClosingDouble = Integer.MAX_VALUE;
+        noClosingSingle = Integer.MAX_VALUE;
+        int length = buffer.length();
+        while (pos < length) {
+            if (Character.isWhitespace(buffer.charAt(pos))) {
+                pos++;
             } else {
-                // Unhighlighted text
-                int start = i;
-                while (i < buffer.length() && !highlighted[i]) {
-                    i++;
-                }
-                builder.append(buffer.substring(start, i));
+                pos = lexRun(buffer, pos);
             }
         }
-
-        return builder.toAttributedString();
+        lastBuffer = buffer;
     }
 
-    private void markPattern(String buffer, boolean[] highlighted, Pattern pattern) {
-        Matcher matcher = pattern.matcher(buffer);
+    // Lexes one whitespace separated run starting at start, strings may carry it past whitespace
+    private int lexRun(String buffer, int start) {
+        int firstToken = tokenCount;
+        boolean stable = true;
+        int length = buffer.length();
+        int pos = start;
 
-        while (matcher.find()) {
-            int start = matcher.start();
-            int end = matcher.end();
+        while (pos < length) {
+            char c = buffer.charAt(pos);
+            if (Character.isWhitespace(c)) break;
 
-            // Check if this region is already highlighted
-            boolean alreadyHighlighted = false;
-            for (int i = start; i < end; i++) {
-                if (highlighted[i]) {
-                    alreadyHighlighted = true;
-                    break;
+            if (c == '"' || c == '\'') {
+                int end = stringEnd(buffer, pos, c);
+                if (end > 0) {
+                    addToken(pos, end, STRING);
+                    pos = end;
+                } else {
+                    // an unterminated quote turns into a string once it is closed, so this run is not reusable
+                    stable = false;
+                    pos++;
+                }
+            } else if (c >= '0' && c <= '9' && (pos == 0 || !isWordChar(buffer.charAt(pos - 1)))) {
+                int end = numberEnd(buffer, pos);
+                if (end > 0) {
+                    addToken(pos, end, NUMBER);
+                    pos = end;
+                } else {
+                    pos++;
                 }
+            } else if (c == '$') {
+                int end = varnameEnd(buffer, pos);
+                if (end > 0) {
+                    addToken(pos, end, VARNAME);
+                    // same as above, a quote inside the name may still be closed later
+                    if (containsQuote(buffer, pos, end)) stable = false;
+                    pos = end;
+                } else {
+                    pos++;
+                }
+            } else {
+                pos++;
             }
+        }
 
-            if (!alreadyHighlighted) {
-                // Mark this region as highlighted
-                for (int i = start; i < end; i++) {
-                    highlighted[i] = true;
-                }
+        if (tokenCount == firstToken) {
+            addToken(start, pos, KEYWORD);
+        }
+        addRun(start, pos, stable);
+        return pos;
+    }
+
+    // Position after the closing quote, or -1 if the string is never closed
+    private int stringEnd(String buffer, int open, char quote) {
+        int limit = quote == '"' ? noClosingDouble : noClosingSingle;
+        if (open >= limit) return -1;
+
+        int length = buffer.length();
+        for (int i = open + 1; i < length; i++) {
+            char c = buffer.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == quote) {
+                return i + 1;
             }
         }
+
+        if (quote == '"') noClosingDouble = open;
+        else noClosingSingle = open;
+        return -1;
     }
 
-    private AttributedStyle getStyleAt(String buffer, int pos) {
-        // Check patterns in priority order
-        if (matches(buffer, pos, STRINGS)) {
-            return AttributedStyle.DEFAULT.foreground(AttributedStyle.RED);
+    // Matches \d+(\.\d+)?\b from start, which already sits on a word boundary. Returns -1 if there is no match.
+    private int numberEnd(String buffer, int start) {
+        int length = buffer.length();
+        int pos = start;
+        while (pos < length && isDigit(buffer.charAt(pos))) pos++;
+        int integerEnd = pos;
+
+        if (pos + 1 < length && buffer.charAt(pos) == '.' && isDigit(buffer.charAt(pos + 1))) {
+            pos += 2;
+            while (pos < length && isDigit(buffer.charAt(pos))) pos++;
+            if (pos == length || !isWordChar(buffer.charAt(pos))) return pos;
         }
-        if (matches(buffer, pos, NUMBERS)) {
-            return AttributedStyle.DEFAULT.foreground(AttributedStyle.CYAN);
+
+        if (integerEnd == length || !isWordChar(buffer.charAt(integerEnd))) return integerEnd;
+        return -1;
+    }
+
+    // $ up to the next whitespace, unless a string or number sits inside and takes priority
+    private int varnameEnd(String buffer, int start) {
+        int length = buffer.length();
+        int pos = start + 1;
+        while (pos < length && !Character.isWhitespace(buffer.charAt(pos))) {
+            char c = buffer.charAt(pos);
+            if ((c == '"' || c == '\'') && stringEnd(buffer, pos, c) > 0) return -1;
+            if (isDigit(c) && !isWordChar(buffer.charAt(pos - 1)) && numberEnd(buffer, pos) > 0) return -1;
+            pos++;
         }
-        if (matches(buffer, pos, VARNAME)) {
-            return AttributedStyle.DEFAULT.foreground(AttributedStyle.YELLOW);
+        return pos > start + 1 ? pos : -1;
+    }
+
+    // The name is the word characters after the '$', punctuation such as a trailing ';' is not part of it
+    private boolean knownVariable(String buffer, int start, int end) {
+        int nameEnd = start + 1;
+        while (nameEnd < end && isWordChar(buffer.charAt(nameEnd))) nameEnd++;
+        return nameEnd == start + 1 || catalog.hasVariable(buffer, start + 1, nameEnd);
+    }
+
+    private static boolean containsQuote(String buffer, int start, int end) {
+        for (int i = start; i < end; i++) {
+            char c = buffer.charAt(i);
+            if (c == '"' || c == '\'') return true;
         }
-        if (matches(buffer, pos, KEYWORDS)) {
-            return AttributedStyle.BOLD.foreground(AttributedStyle.GREEN);
+        return false;
+    }
+
+    private void addToken(int start, int end, int kind) {
+        if (tokenCount * 3 + 3 > tokens.length) {
+            tokens = Arrays.copyOf(tokens, tokens.length * 2);
         }
-        return AttributedStyle.DEFAULT;
+        tokens[tokenCount * 3] = start;
+        tokens[tokenCount * 3 + 1] = end;
+        tokens[tokenCount * 3 + 2] = kind;
+        tokenCount++;
     }
 
-    private boolean matches(String buffer, int pos, Pattern pattern) {
-        Matcher matcher = pattern.matcher(buffer);
-        while (matcher.find()) {
-            if (matcher.start() <= pos && pos < matcher.end()) {
-                return true;
-            }
+    private void addRun(int start, int end, boolean stable) {
+        if (runCount * 4 + 4 > runs.length) {
+            runs = Arrays.copyOf(runs, runs.length * 2);
         }
-        return false;
+        runs[runCount * 4] = start;
+        runs[runCount * 4 + 1] = end;
+        runs[runCount * 4 + 2] = tokenCount;
+        runs[runCount * 4 + 3] = stable ? 1 : 0;
+        runCount++;
+    }
+
+    private static int commonPrefix(String a, String b) {
+        int max = Math.min(a.length(), b.length());
+        int i = 0;
+        while (i < max && a.charAt(i) == b.charAt(i)) i++;
+        return i;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isWordChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_';
     }
 }
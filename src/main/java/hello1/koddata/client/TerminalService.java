@@ -6,60 +6,161 @@ import org.jline.terminal.Terminal;
 import org.jline.terminal.TerminalBuilder;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
+import java.io.UncheckedIOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
-public class TerminalService {
+public class TerminalService implements MessageSink {
+
+    private static final int DEFAULT_MAX_PRINT_RATE = 60;
+    private static final int MAX_MESSAGES_PER_FRAME = 4096;
+
+    // results at least this large are paged instead of printed whole
+    private static final long RESULT_VIEW_THRESHOLD = 64 * 1024;
+
+    private static final long CACHE_MEMORY_BYTES = 32L << 20;
+    private static final long CACHE_DISK_BYTES = 256L << 20;
+    private static final long DEFAULT_CACHE_TTL_MILLIS = 5 * 60 * 1000;
+
+    // export <query> to <file> [as csv|binary] [rotate <MB>];
+    private static final Pattern EXPORT = Pattern.compile(
+            "(?is)\\s*export\\s+(.+?)\\s+to\\s+(\"[^\"]+\"|\\S+)(?:\\s+as\\s+(csv|binary))?(?:\\s+rotate\\s+(\\d+))?\\s*;\\s*");
 
     private Terminal terminal;
     private LineReader reader;
+    // set up in the background, start() waits for it
+    private final CompletableFuture<LineReader> readerReady;
     private String terminalPrefix;
 
     private ServerService serverService;
+    private UploadService uploadService;
+
+    // the last paged result, \more, \head and \tail work on it
+    private volatile ResultView lastResult;
+
+    // null unless the result cache is switched on
+    private volatile ResultCache resultCache;
+    private long cacheTtlMillis = DEFAULT_CACHE_TTL_MILLIS;
 
-    private Queue<String> printQueue;
+    // names for completion and highlighting, filled from the server once it offers a catalog
+    private final CatalogCache catalog = new CatalogCache();
+
+    private BlockingQueue<String> printQueue;
+    private long minFrameIntervalNanos;
 
     private volatile boolean running = false;
 
     private Thread printThread;
     private Thread readThread;
 
-    public TerminalService(String terminalPrefix) throws IOException {
+    // Returns right away, JLine sets up the terminal while the caller connects and logs in.
+    // Messages can be queued before start(), they are printed once the terminal is ready.
+    public TerminalService(String terminalPrefix) {
         this.terminalPrefix = terminalPrefix;
-        this.printQueue = new ConcurrentLinkedQueue<>();
-        this.printThread = new Thread(this::doPrint);
-        this.readThread = new Thread(this::doRead);
-        terminal = TerminalBuilder.builder().system(true).build();
-        reader = LineReaderBuilder.builder()
+        this.printQueue = new LinkedBlockingQueue<>();
+        setMaxPrintRate(DEFAULT_MAX_PRINT_RATE);
+        this.printThread = Thread.ofVirtual().name("kd-print").unstarted(this::doPrint);
+        this.readThread = Thread.ofVirtual().name("kd-input").unstarted(this::doRead);
+        this.readerReady = CompletableFuture.supplyAsync(this::buildReader,
+                runnable -> Thread.ofVirtual().name("kd-terminal-init").start(runnable));
+    }
+
+    private LineReader buildReader() {
+        try {
+            terminal = TerminalBuilder.builder().system(true).build();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return LineReaderBuilder.builder()
                 .terminal(terminal)
-                .highlighter(new SyntaxHighlighter())
+                .highlighter(new SyntaxHighlighter(catalog))
+                .completer(new CatalogCompleter(catalog))
                 .build();
     }
 
+    // Uploads go over this service unless initUploadService() provides more connections
     public void initServerService(ServerService service) {
         this.serverService = service;
+        this.uploadService = new UploadService(List.of(service), this);
+        catalog.setSource(service);
     }
 
-    public void start() {
+    public void initUploadService(UploadService uploadService) {
+        this.uploadService = uploadService;
+    }
+
+    // Read-only commands are answered from the cache while it is on, \\cache on|off switches it at runtime
+    public void enableResultCache(long ttlMillis) {
+        this.cacheTtlMillis = ttlMillis;
+        this.resultCache = new ResultCache(CACHE_MEMORY_BYTES, CACHE_DISK_BYTES, ttlMillis);
+    }
+
+    // Upper bound on how often output is drawn above the prompt, messages arriving in between share a frame
+    public void setMaxPrintRate(int framesPerSecond) {
+        if (framesPerSecond <= 0) {
+            throw new IllegalArgumentException("print rate must be positive");
+        }
+        this.minFrameIntervalNanos = TimeUnit.SECONDS.toNanos(1) / framesPerSecond;
+    }
+
+    public void start() throws IOException {
+        try {
+            reader = readerReady.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException failed) throw failed.getCause();
+            throw e;
+        }
         running = true;
+        catalog.refreshIfStale(); // fetched while the prompt comes up
         printThread.start();
         readThread.start();
     }
 
+    // Both threads are virtual and keep nothing alive, the caller waits here until the user exits the shell
+    public void awaitExit() throws InterruptedException {
+        readThread.join();
+        printThread.join();
+    }
+
+    public ClientMetrics getMetrics() {
+        return serverService.getMetrics();
+    }
+
     private void doPrint() {
+        List<String> pending = new ArrayList<>();
+        StringBuilder frame = new StringBuilder();
+
         try {
             while (running) {
-                String msg = printQueue.poll();
-                if (msg != null) {
-                    reader.printAbove(msg);
-                } else {
-                    // Sleep briefly to avoid busy-waiting
-                    Thread.sleep(50);
+                // block until there is something to show, then take everything else that is waiting
+                pending.add(printQueue.take());
+                printQueue.drainTo(pending, MAX_MESSAGES_PER_FRAME - 1);
+
+                for (String msg : pending) {
+                    if (frame.length() > 0) frame.append('\n');
+                    frame.append(msg);
+                }
+                long frameStart = System.nanoTime();
+                reader.printAbove(frame.toString());
+                ClientMetrics metrics = serverService.getMetrics();
+                metrics.renderLatency.record(System.nanoTime() - frameStart);
+                metrics.renderedMessages.add(pending.size());
+                pending.clear();
+                frame.setLength(0);
+
+                long idle = minFrameIntervalNanos - (System.nanoTime() - frameStart);
+                if (idle > 0) {
+                    TimeUnit.NANOSECONDS.sleep(idle);
                 }
             }
         } catch (InterruptedException e) {
@@ -84,6 +185,12 @@ public class TerminalService {
                 break;  // exit the loop
             }
 
+            // meta-commands start with a backslash and are handled by the shell itself
+            if (stringBuilder.length() == 0 && in.trim().startsWith("\\")) {
+                doMetaCommand(in.trim());
+                continue;
+            }
+
             stringBuilder.append(in).append("\n");
 
             if (in.contains(";")) {
@@ -92,70 +199,231 @@ public class TerminalService {
             }
         }
         running = false;
+        // closes the shell's connection too, it is one of those uploads go over
+        uploadService.close();
+        ResultCache cache = resultCache;
+        if (cache != null) cache.close();
+        ResultView view = lastResult;
+        if (view != null) view.discard();
+        printThread.interrupt();
     }
 
-    private void doFlush(String cmd) {
-        if (cmd.toLowerCase().startsWith("upload")) {
-            String pathStr = cmd.substring("upload".length() + 1, cmd.length() - 2).trim();
-
-            try {
-                Path path = Paths.get(pathStr);
-                byte[] fileBytes = Files.readAllBytes(path);
-
-                String filename = path.getFileName().toString();
-                byte[] filenameBytes = filename.getBytes(StandardCharsets.UTF_8);
-
-                int totalLength = 1 + 8 + filenameBytes.length + fileBytes.length;
-                ByteBuffer buffer = ByteBuffer.allocate(totalLength);
+    private void doMetaCommand(String line) {
+        String[] parts = line.split("\\s+");
+        switch (parts[0].toLowerCase()) {
+            case "\\stats" -> {
+                ClientMetrics metrics = serverService.getMetrics();
+                if (parts.length > 1 && parts[1].equalsIgnoreCase("reset")) {
+                    metrics.reset();
+                    enqueueMessage("Statistics reset");
+                } else {
+                    enqueueMessage(metrics.getReport());
+                }
+            }
+            case "\\cache" -> doCacheCommand(parts);
+            case "\\catalog" -> {
+                if (parts.length > 1 && parts[1].equalsIgnoreCase("reload")) {
+                    catalog.reload();
+                    catalog.refreshIfStale();
+                    enqueueMessage("Catalog reload requested");
+                } else {
+                    enqueueMessage(catalog.getReport());
+                }
+            }
+            case "\\more" -> withResult(view -> view.more(rowsArgument(parts)));
+            case "\\head" -> withResult(view -> view.head(rowsArgument(parts)));
+            case "\\tail" -> withResult(view -> view.tail(rowsArgument(parts)));
+            default -> enqueueMessage("Unknown meta-command: " + parts[0]);
+        }
+    }
 
-                buffer.put((byte) 1);
-                buffer.putInt(filenameBytes.length);
-                buffer.put(filenameBytes);
-                buffer.putInt(fileBytes.length);
-                buffer.put(fileBytes);
+    private void doCacheCommand(String[] parts) {
+        String action = parts.length > 1 ? parts[1].toLowerCase() : "stats";
+        ResultCache cache = resultCache;
+        switch (action) {
+            case "on" -> {
+                if (cache == null) enableResultCache(cacheTtlMillis);
+                enqueueMessage("Result cache on, answers to read-only commands are kept for " + cacheTtlMillis / 1000 + " s");
+                if (!serverService.isPipelined()) {
+                    enqueueMessage("The server does not tag answers, output that answers no command may be cached as the answer of the next one");
+                }
+            }
+            case "off" -> {
+                resultCache = null;
+                if (cache != null) cache.close();
+                enqueueMessage("Result cache off");
+            }
+            case "clear" -> {
+                if (cache != null) cache.invalidate();
+                enqueueMessage("Result cache cleared");
+            }
+            case "ttl" -> {
+                try {
+                    long seconds = Long.parseLong(parts[2]);
+                    if (seconds <= 0) throw new NumberFormatException();
+                    cacheTtlMillis = seconds * 1000;
+                    if (cache != null) cache.setTtlMillis(cacheTtlMillis);
+                    enqueueMessage("Cached answers now expire after " + seconds + " s");
+                } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+                    enqueueMessage("Usage: \\cache ttl <seconds>");
+                }
+            }
+            case "stats" -> enqueueMessage(cache == null ? "Result cache is off" : cache.getReport());
+            default -> enqueueMessage("Usage: \\cache on|off|clear|stats|ttl <seconds>");
+        }
+    }
 
-                byte[] dataToSend = buffer.array();
+    private void withResult(Consumer<ResultView> action) {
+        ResultView view = lastResult;
+        if (view == null) {
+            enqueueMessage("No paged result, results under " + RESULT_VIEW_THRESHOLD / 1024 + " KB are printed whole");
+        } else {
+            action.accept(view);
+        }
+    }
 
-                serverService.enqueueSend(dataToSend);
-                enqueueMessage("Uploading file: " + filename);
+    private int rowsArgument(String[] parts) {
+        if (parts.length < 2) return ResultView.PAGE_ROWS;
+        try {
+            return Math.max(1, Integer.parseInt(parts[1]));
+        } catch (NumberFormatException e) {
+            enqueueMessage("Not a row count: " + parts[1]);
+            return ResultView.PAGE_ROWS;
+        }
+    }
 
-            } catch (IOException e) {
-                enqueueMessage("Failed to read file: " + pathStr + " (" + e.getMessage() + ")");
-            }
+    private void doFlush(String cmd) {
+        ResultCache cache = resultCache;
+        // the names it creates or drops are fetched at the next keystroke, by then the server has likely run it
+        if (!ResultCache.isReadOnly(ResultCache.normalize(cmd))) catalog.markStale();
+        if (cmd.toLowerCase().startsWith("upload")) {
+            if (cache != null) cache.invalidate();
+            String pathStr = cmd.substring("upload".length() + 1, cmd.length() - 2).trim();
+            // a file, a directory or a glob, files are opened and sent in the background
+            uploadService.upload(pathStr);
 
         }else if (cmd.toLowerCase().startsWith("consult")) {
+            if (cache != null) cache.invalidate();
             String pathStr = cmd.substring("consult".length() + 1, cmd.length() - 2).trim();
 
             try {
                 Path path = Paths.get(pathStr);
-                byte[] fileBytes = Files.readAllBytes(path);
+                OutboundFrame frame = serverService.scriptFrame(path);
 
                 String filename = path.getFileName().toString();
                 enqueueMessage("Executing: " + filename);
 
-                byte[] dataToSend = new byte[fileBytes.length + 1];
-                dataToSend[0] = 0;
-                System.arraycopy(fileBytes, 0, dataToSend, 1, fileBytes.length);
-
-                serverService.enqueueSend(dataToSend);
+                if (!serverService.enqueueSend(frame)) {
+                    enqueueMessage("Send buffer full, " + filename + " not sent");
+                }
 
             } catch (IOException e) {
                 enqueueMessage("Failed to read file: " + pathStr + " (" + e.getMessage() + ")");
             }
 
+        } else if (EXPORT.matcher(cmd).matches()) {
+            doExport(cmd);
+        } else if (cache != null) {
+            doCachedCommand(cmd, cache);
+        } else if (serverService.isSpooling()) {
+            serverService.spool(cmd);
         } else {
-            byte[] cmdBytes = cmd.getBytes(StandardCharsets.UTF_8);
-            byte[] dataToSend = new byte[cmdBytes.length + 1];
-            dataToSend[0] = 0;
-            System.arraycopy(cmdBytes, 0, dataToSend, 1, cmdBytes.length);
+            if (!serverService.enqueueSend(serverService.commandFrame(cmd))) {
+                enqueueMessage("Send buffer full, command not sent");
+            }
+        }
+    }
+
+    // The answer goes from the socket straight to the file, it is never held whole or printed
+    private void doExport(String cmd) {
+        Matcher export = EXPORT.matcher(cmd);
+        if (!export.matches()) return;
+        String file = export.group(2);
+        if (file.startsWith("\"")) file = file.substring(1, file.length() - 1);
+        Path path = Paths.get(file);
+        ResultExport.Format format = export.group(3) == null ? ResultExport.formatOf(path)
+                : export.group(3).equalsIgnoreCase("binary") ? ResultExport.Format.BINARY : ResultExport.Format.CSV;
+        long rotateBytes = 0;
+        if (export.group(4) != null) {
+            try {
+                long megabytes = Long.parseLong(export.group(4));
+                // anything larger would overflow once turned into bytes
+                if (megabytes > Long.MAX_VALUE >> 20) throw new NumberFormatException();
+                rotateBytes = megabytes << 20;
+            } catch (NumberFormatException e) {
+                enqueueMessage("Usage: export <query> to <file> [as csv|binary] [rotate <MB>]; with at most "
+                        + (Long.MAX_VALUE >> 20) + " MB");
+                return;
+            }
+        }
+
+        ResultExport result;
+        try {
+            result = new ResultExport(path, format, rotateBytes, this);
+        } catch (IOException e) {
+            enqueueMessage("Failed to open " + path + " (" + e.getMessage() + ")");
+            return;
+        }
+        if (!serverService.isPipelined()) {
+            enqueueMessage("The server does not tag answers, output that answers no command may end up in the export");
+        }
+        enqueueMessage("Exporting to " + path + " as " + format.name().toLowerCase());
+        serverService.submit(export.group(1).trim() + ";", result).whenComplete((answer, error) -> {
+            if (error != null) result.abort(error.getMessage());
+        });
+    }
+
+    // Commands go out as requests so their answers can be stored, everything that is not a read clears the cache
+    private void doCachedCommand(String cmd, ResultCache cache) {
+        String normalized = ResultCache.normalize(cmd);
+        if (!ResultCache.isReadOnly(normalized)) {
+            cache.invalidate();
+            if (serverService.isSpooling()) serverService.spool(cmd);
+            else serverService.submitPaged(cmd).whenComplete((response, error) -> {
+                if (response != null || error != null) printAnswer(response, error);
+            });
+            return;
+        }
 
-            serverService.enqueueSend(dataToSend);
+        String key = ResultCache.key(serverService.getSessionId(), normalized);
+        String cached = cache.get(key);
+        if (cached != null) {
+            enqueueMessage(cached);
+            return;
+        }
+        long generation = cache.generation();
+        // a large answer is paged like any other and not cached, it would be one String in memory
+        serverService.submitPaged(cmd).whenComplete((response, error) -> {
+            if (response == null && error == null) return;
+            if (error == null && response.length() < RESULT_VIEW_THRESHOLD) cache.put(key, response, generation);
+            printAnswer(response, error);
+        });
+    }
+
+    private void printAnswer(String response, Throwable error) {
+        if (error != null) {
+            enqueueMessage("Command failed: " + error.getMessage());
+        } else {
+            enqueueMessage(response);
         }
     }
 
 
 
-    public synchronized void enqueueMessage(String msg) {
+    @Override
+    public void enqueueMessage(String msg) {
         this.printQueue.offer(msg);
     }
+
+    // Large results are paged, a new one replaces the previous result and its spill file
+    @Override
+    public ResultStream openResult(long length) {
+        if (length < RESULT_VIEW_THRESHOLD) return null;
+
+        ResultView previous = lastResult;
+        if (previous != null) previous.discard();
+        ResultView view = new ResultView(this);
+        lastResult = view;
+        return view;
+    }
 }
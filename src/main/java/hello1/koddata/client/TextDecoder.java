@@ -0,0 +1,80 @@
+package hello1.koddata.client;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+// Decodes UTF-8 text that arrives in arbitrary chunks, a character split across two chunks is carried over
+public class TextDecoder {
+
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    private final CharBuffer chars = CharBuffer.allocate(8192);
+    private final ByteBuffer carry = ByteBuffer.allocate(8);
+    private final StringBuilder text = new StringBuilder();
+
+    // Decodes all of src, src is left empty
+    public void append(ByteBuffer src) {
+        while (carry.position() > 0 && src.hasRemaining()) {
+            carry.put(src.get());
+            carry.flip();
+            decode(carry, false);
+            carry.compact();
+        }
+
+        decode(src, false);
+        if (src.hasRemaining()) {
+            carry.put(src); // at most the first bytes of one character
+        }
+    }
+
+    public int length() {
+        return text.length();
+    }
+
+    // Hands every complete line decoded so far to consumer, without its '\n', and keeps the unfinished rest
+    public void drainLines(Consumer<String> consumer) {
+        int start = 0;
+        int end;
+        while ((end = text.indexOf("\n", start)) >= 0) {
+            int lineEnd = end > start && text.charAt(end - 1) == '\r' ? end - 1 : end;
+            consumer.accept(text.substring(start, lineEnd));
+            start = end + 1;
+        }
+        text.delete(0, start);
+    }
+
+    // Returns everything decoded so far and resets for the next message
+    public String finish() {
+        carry.flip();
+        decode(carry, true);
+        carry.clear();
+        decoder.flush(chars);
+        drainChars();
+        decoder.reset();
+
+        String result = text.toString();
+        text.setLength(0);
+        return result;
+    }
+
+    private void decode(ByteBuffer src, boolean endOfInput) {
+        while (true) {
+            CoderResult result = decoder.decode(src, chars, endOfInput);
+            drainChars();
+            if (!result.isOverflow()) break;
+        }
+    }
+
+    private void drainChars() {
+        chars.flip();
+        text.append(chars);
+        chars.clear();
+    }
+}
@@ -0,0 +1,88 @@
+package hello1.koddata.client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.LongConsumer;
+
+// Wraps a frame to learn when it left the socket. done() fails if the frame was dropped, e.g. because the connection closed.
+// With a progress callback the bytes of every write are reported as they go out, on the send thread.
+public class TrackedFrame implements OutboundFrame {
+
+    private final OutboundFrame frame;
+    private final CompletableFuture<Void> done = new CompletableFuture<>();
+    private final LongConsumer progress;
+    private boolean written = false;
+    private long reported = 0;
+
+    public TrackedFrame(OutboundFrame frame) {
+        this(frame, null);
+    }
+
+    public TrackedFrame(OutboundFrame frame, LongConsumer progress) {
+        this.frame = frame;
+        this.progress = progress;
+    }
+
+    public CompletableFuture<Void> done() {
+        return done;
+    }
+
+    @Override
+    public boolean writeTo(WritableByteChannel channel) throws IOException {
+        try {
+            written = frame.writeTo(channel);
+        } finally {
+            reportProgress();
+        }
+        return written;
+    }
+
+    private void reportProgress() {
+        if (progress == null) return;
+        long now = frame.written();
+        if (now > reported) progress.accept(now - reported);
+        reported = now;
+    }
+
+    @Override
+    public long size() {
+        return frame.size();
+    }
+
+    @Override
+    public long charge() {
+        return frame.charge();
+    }
+
+    @Override
+    public long written() {
+        return frame.written();
+    }
+
+    @Override
+    public void release() {
+        // a pooled buffer may be handed out again once released, look at it first
+        boolean sent = written || (frame.buffer() != null && !frame.buffer().hasRemaining());
+        frame.release();
+        if (sent) {
+            done.complete(null);
+        } else {
+            done.completeExceptionally(new IOException("Frame was not sent, connection closed"));
+        }
+    }
+
+    @Override
+    public boolean rewind() throws IOException {
+        // bytes sent again after the rewind count once more, they did go out twice
+        boolean rewound = frame.rewind();
+        reported = frame.written();
+        return rewound;
+    }
+
+    @Override
+    public ByteBuffer buffer() {
+        return frame.buffer();
+    }
+}
@@ -0,0 +1,138 @@
+package hello1.koddata.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+// Sidecar file that lets an interrupted transfer continue where it stopped.
+// For downloads it sits next to the .part file and holds a CRC32C per completed chunk, so data that did not
+// make it to disk intact is fetched again. For uploads it holds the source file and the offset the server acknowledged.
+public class TransferState {
+
+    private static final int MAGIC = 0x4B445253; // "KDRS"
+    private static final int VERSION = 1;
+
+    public static final String DOWNLOAD_SUFFIX = ".part.state";
+    public static final String UPLOAD_SUFFIX = ".upload.state";
+
+    public final Path path;
+    public final String name;
+    public final long size;
+
+    // uploads only, the file being sent and its modification time when the transfer started
+    public final String source;
+    public final long sourceModified;
+
+    public final int chunkSize;
+    public long offset;
+
+    // uploads only, true while a frame for it is queued or being written
+    public volatile boolean sending;
+
+    private int[] checksums = new int[16];
+    private int checksumCount;
+
+    public TransferState(Path path, String name, long size, String source, long sourceModified, int chunkSize) {
+        this.path = path;
+        this.name = name;
+        this.size = size;
+        this.source = source;
+        this.sourceModified = sourceModified;
+        this.chunkSize = chunkSize;
+    }
+
+    public static Path downloadStatePath(Path directory, String name) {
+        return directory.resolve(name + DOWNLOAD_SUFFIX);
+    }
+
+    // Files of the same name from different directories get a sidecar each, told apart by a hash of the source
+    public static Path uploadStatePath(Path directory, String name, String source) {
+        CRC32C hash = new CRC32C();
+        hash.update(source.getBytes(StandardCharsets.UTF_8));
+        return directory.resolve(String.format("%s-%08x%s", name, hash.getValue(), UPLOAD_SUFFIX));
+    }
+
+    // Returns null if there is no state or it cannot be read, a broken sidecar just means starting over
+    public static TransferState load(Path path) {
+        if (!Files.isRegularFile(path)) return null;
+
+        try (InputStream file = Files.newInputStream(path); DataInputStream in = new DataInputStream(file)) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) return null;
+
+            String name = in.readUTF();
+            long size = in.readLong();
+            String source = in.readUTF();
+            long sourceModified = in.readLong();
+            int chunkSize = in.readInt();
+
+            TransferState state = new TransferState(path, name, size, source.isEmpty() ? null : source, sourceModified, chunkSize);
+            state.offset = in.readLong();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                state.addChecksum(in.readInt());
+            }
+            return state;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // Replaces the sidecar in one rename, a crash leaves either the old or the new state
+    public void save() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + checksumCount * 4);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeUTF(name);
+        out.writeLong(size);
+        out.writeUTF(source == null ? "" : source);
+        out.writeLong(sourceModified);
+        out.writeInt(chunkSize);
+        out.writeLong(offset);
+        out.writeInt(checksumCount);
+        for (int i = 0; i < checksumCount; i++) {
+            out.writeInt(checksums[i]);
+        }
+
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.write(temp, bytes.toByteArray());
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public void delete() {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void addChecksum(int checksum) {
+        if (checksumCount == checksums.length) {
+            checksums = Arrays.copyOf(checksums, checksums.length * 2);
+        }
+        checksums[checksumCount++] = checksum;
+    }
+
+    public int getChecksum(int chunk) {
+        return checksums[chunk];
+    }
+
+    public int getChecksumCount() {
+        return checksumCount;
+    }
+
+    // Drops the checksums from chunk on, the offset moves back to the start of that chunk
+    public void truncate(int chunk) {
+        checksumCount = Math.min(checksumCount, chunk);
+        offset = Math.min(offset, (long) checksumCount * chunkSize);
+    }
+}
@@ -0,0 +1,236 @@
+package hello1.koddata.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.stream.Stream;
+
+// Runs `upload <file, directory or glob>;` off the prompt thread. Every file gets a virtual thread, at most
+// MAX_FILES_IN_FLIGHT of them have a frame queued at once so a large directory does not open every file up front.
+// Files are spread over the connections by the bytes each one still has to send.
+public class UploadService {
+
+    private static final int MAX_FILES_IN_FLIGHT = 8;
+    private static final long PROGRESS_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final List<ServerService> connections;
+    private final MessageSink messageSink;
+
+    private final ExecutorService workers = Executors.newVirtualThreadPerTaskExecutor();
+    private final Semaphore filesInFlight = new Semaphore(MAX_FILES_IN_FLIGHT);
+    private final AtomicLongArray queuedBytes;
+
+    public UploadService(List<ServerService> connections, MessageSink messageSink) {
+        this.connections = List.copyOf(connections);
+        this.messageSink = messageSink;
+        this.queuedBytes = new AtomicLongArray(connections.size());
+    }
+
+    // Returns immediately, progress and errors are reported through the message sink
+    public void upload(String pattern) {
+        workers.execute(() -> {
+            List<Path> files;
+            try {
+                files = resolve(pattern);
+            } catch (IOException | RuntimeException e) {
+                messageSink.enqueueMessage("Failed to read file: " + pattern + " (" + reason(e) + ")");
+                return;
+            }
+            if (files.isEmpty()) {
+                messageSink.enqueueMessage("No files match: " + pattern);
+                return;
+            }
+
+            Batch batch = new Batch(pattern, files);
+            for (Path file : files) {
+                workers.execute(() -> uploadFile(batch, file));
+            }
+        });
+    }
+
+    // Stops the transfers in progress and the connections they go over
+    public void close() {
+        workers.shutdownNow();
+        for (ServerService connection : connections) {
+            connection.stop();
+        }
+    }
+
+    private void uploadFile(Batch batch, Path file) {
+        try {
+            filesInFlight.acquire();
+        } catch (InterruptedException e) {
+            return;
+        }
+
+        int connection = -1;
+        long size = 0;
+        try {
+            connection = leastLoaded();
+            if (connection < 0) {
+                batch.fileFailed(file, "Failed to upload file", "not connected");
+                return;
+            }
+
+            ServerService service = connections.get(connection);
+            TrackedFrame frame;
+            try {
+                size = Files.size(file);
+            } catch (IOException e) {
+                batch.fileFailed(file, "Failed to read file", reason(e));
+                return;
+            }
+            try {
+                frame = new TrackedFrame(service.uploadFrame(file), batch::sent);
+            } catch (IOException e) {
+                batch.fileFailed(file, "Failed to upload file", reason(e));
+                return;
+            }
+            queuedBytes.addAndGet(connection, size);
+            batch.fileStarted(size);
+            if (batch.files.size() == 1) {
+                messageSink.enqueueMessage("Uploading file: " + file.getFileName() + " (" + size + " bytes)");
+            }
+            if (!service.enqueueSend(frame)) {
+                batch.fileFailed(file, "Failed to upload file", service.isRunning() ? "send buffer full" : "connection closed");
+                return;
+            }
+
+            frame.done().get();
+            batch.fileDone();
+        } catch (ExecutionException e) {
+            batch.fileFailed(file, "Failed to upload file", reason(e.getCause()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (connection >= 0) queuedBytes.addAndGet(connection, -size);
+            filesInFlight.release();
+        }
+    }
+
+    // NoSuchFileException and friends carry only the path as their message
+    private static String reason(Throwable e) {
+        if (e instanceof NoSuchFileException) return "no such file";
+        if (e instanceof AccessDeniedException) return "access denied";
+        return e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+    }
+
+    private int leastLoaded() {
+        int best = -1;
+        for (int i = 0; i < connections.size(); i++) {
+            if (!connections.get(i).isRunning()) continue;
+            if (best < 0 || queuedBytes.get(i) < queuedBytes.get(best)) best = i;
+        }
+        return best;
+    }
+
+    // A plain file, every file under a directory, or the files matching a glob such as data/2024-*/*.csv
+    static List<Path> resolve(String pattern) throws IOException {
+        int firstWildcard = indexOfWildcard(pattern);
+        if (firstWildcard < 0) {
+            Path path = Path.of(pattern);
+            if (!Files.isDirectory(path)) return List.of(path);
+            return walk(path, file -> true);
+        }
+
+        // walk from the deepest directory that has no wildcard in it
+        int separator = Math.max(pattern.lastIndexOf('/', firstWildcard), pattern.lastIndexOf(File.separatorChar, firstWildcard));
+        Path base = separator < 0 ? Path.of("") : Path.of(pattern.substring(0, separator + 1));
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+        return walk(base, matcher);
+    }
+
+    private static List<Path> walk(Path base, PathMatcher matcher) throws IOException {
+        try (Stream<Path> paths = Files.walk(base)) {
+            return paths.filter(Files::isRegularFile).filter(matcher::matches).sorted().toList();
+        }
+    }
+
+    private static int indexOfWildcard(String pattern) {
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c == '*' || c == '?' || c == '[' || c == '{') return i;
+        }
+        return -1;
+    }
+
+    // Progress of one upload command, counted as the bytes leave the socket. Reported at most once per
+    // PROGRESS_INTERVAL_NANOS and once at the end.
+    private class Batch {
+
+        private final String pattern;
+        private final List<Path> files;
+        private final long startedNanos = System.nanoTime();
+        private final AtomicLong lastReportNanos = new AtomicLong(startedNanos);
+
+        private final AtomicInteger finishedFiles = new AtomicInteger();
+        private final AtomicInteger failedFiles = new AtomicInteger();
+        private final AtomicLong sentBytes = new AtomicLong();
+        private final AtomicLong totalBytes = new AtomicLong();
+
+        Batch(String pattern, List<Path> files) {
+            this.pattern = pattern;
+            this.files = files;
+            if (files.size() > 1) {
+                messageSink.enqueueMessage("Uploading " + files.size() + " files from " + pattern);
+            }
+        }
+
+        void fileStarted(long size) {
+            totalBytes.addAndGet(size);
+        }
+
+        // Called on the send thread for every write of a file's frame
+        void sent(long bytes) {
+            sentBytes.addAndGet(bytes);
+            long now = System.nanoTime();
+            long last = lastReportNanos.get();
+            if (now - last < PROGRESS_INTERVAL_NANOS || !lastReportNanos.compareAndSet(last, now)) return;
+
+            if (files.size() == 1) {
+                messageSink.enqueueMessage("Upload progress: " + files.get(0).getFileName() + ", "
+                        + ClientMetrics.formatBytes(sentBytes.get()) + " of " + ClientMetrics.formatBytes(totalBytes.get()) + " sent");
+            } else {
+                messageSink.enqueueMessage("Upload progress: " + finishedFiles.get() + "/" + files.size() + " files, "
+                        + ClientMetrics.formatBytes(sentBytes.get()) + " sent");
+            }
+        }
+
+        void fileDone() {
+            finished();
+        }
+
+        void fileFailed(Path file, String what, String reason) {
+            failedFiles.incrementAndGet();
+            messageSink.enqueueMessage(what + ": " + file + " (" + reason + ")");
+            finished();
+        }
+
+        private void finished() {
+            int finished = finishedFiles.incrementAndGet();
+            if (files.size() == 1) return;
+
+            if (finished == files.size()) {
+                long elapsed = System.nanoTime() - startedNanos;
+                messageSink.enqueueMessage("Upload finished: " + (finished - failedFiles.get()) + " of " + finished
+                        + " files from " + pattern + ", " + ClientMetrics.formatBytes(sentBytes.get())
+                        + " in " + ClientMetrics.formatNanos(elapsed)
+                        + " (" + ClientMetrics.formatBytes((long) (sentBytes.get() / (Math.max(1, elapsed) / 1e9))) + "/s)");
+            }
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package hello1.koddata.client;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.Inflater;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DeflateFrameTest {
+
+    // mode(1) length(8) then blockLength(4) data ... blockLength 0
+    private static byte[] inflate(byte[] wire) throws Exception {
+        ByteBuffer frame = ByteBuffer.wrap(wire);
+        assertEquals(Protocol.MODE_DEFLATE_COMMAND, frame.get());
+        byte[] body = new byte[(int) frame.getLong()];
+
+        Inflater inflater = new Inflater();
+        int length = 0;
+        for (int blockLength = frame.getInt(); blockLength > 0; blockLength = frame.getInt()) {
+            byte[] block = new byte[blockLength];
+            frame.get(block);
+            inflater.setInput(block);
+            length += inflater.inflate(body, length, body.length - length);
+        }
+        inflater.end();
+        assertEquals(body.length, length);
+        assertEquals(0, frame.remaining());
+        return body;
+    }
+
+    private static byte[] write(OutboundFrame frame) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(frame.writeTo(Channels.newChannel(out)), "a stream channel takes the whole frame");
+        return out.toByteArray();
+    }
+
+    @Test
+    void commandIsChargedItsBodyWhileQueued() throws Exception {
+        byte[] body = "select * from t where a = 1;\n".repeat(5000).getBytes(StandardCharsets.UTF_8);
+        DeflateFrame frame = DeflateFrame.command(body);
+        assertEquals(body.length, frame.charge());
+
+        byte[] wire = write(frame);
+        assertEquals(wire.length, frame.size());
+        assertArrayEquals(body, inflate(wire));
+        frame.release();
+    }
+
+    @Test
+    void scriptIsReadFromDiskAndChargedNothing() throws Exception {
+        Path script = Files.createTempFile("kd-script", ".kd");
+        try {
+            byte[] body = "put x 1;\n".repeat(20_000).getBytes(StandardCharsets.UTF_8);
+            Files.write(script, body);
+            DeflateFrame frame = DeflateFrame.script(script);
+            assertEquals(0, frame.charge());
+
+            byte[] first = write(frame);
+            frame.rewind();
+            assertArrayEquals(first, write(frame));
+            assertArrayEquals(body, inflate(first));
+            frame.release();
+        } finally {
+            Files.deleteIfExists(script);
+        }
+    }
+
+    @Test
+    void frameReleasedUnsentHoldsNoDeflater() {
+        DeflateFrame.command(new byte[4096]).release();
+    }
+}
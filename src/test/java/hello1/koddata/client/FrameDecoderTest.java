@@ -0,0 +1,205 @@
+package hello1.koddata.client;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class FrameDecoderTest {
+
+    // Writes every callback down, data of consecutive calls is joined so the split of the reads does not show
+    private static class Recorder implements FrameDecoder.Handler {
+        final List<String> events = new ArrayList<>();
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+
+        @Override
+        public void onLoginResponse(byte status, long sessionId, int capabilities) {
+            events.add("login " + status + " " + sessionId + " " + capabilities);
+        }
+
+        @Override
+        public void onTextStart(long length, long requestId) {
+            events.add("text " + length + " " + requestId);
+        }
+
+        @Override
+        public void onTextData(ByteBuffer data) {
+            take(data);
+        }
+
+        @Override
+        public void onTextEnd() {
+            events.add("text end " + flush());
+        }
+
+        @Override
+        public void onFileStart(String name, long size) {
+            events.add("file " + name + " " + size);
+        }
+
+        @Override
+        public void onFileResume(String name, long size, long offset) {
+            events.add("resume " + name + " " + size + " " + offset);
+        }
+
+        @Override
+        public void onUploadAck(String name, long offset) {
+            events.add("ack " + name + " " + offset);
+        }
+
+        @Override
+        public void onFileData(ByteBuffer data) {
+            take(data);
+        }
+
+        @Override
+        public void onFileEnd() {
+            events.add("file end " + flush());
+        }
+
+        private void take(ByteBuffer buffer) {
+            while (buffer.hasRemaining()) data.write(buffer.get());
+        }
+
+        private String flush() {
+            String text = data.toString(StandardCharsets.UTF_8);
+            data.reset();
+            return text;
+        }
+    }
+
+    // Feeds the stream the way the read loop does: reads of at most chunk bytes, what is left over is compacted
+    private static List<String> decode(byte[] stream, int chunk) throws IOException {
+        Recorder recorder = new Recorder();
+        FrameDecoder decoder = new FrameDecoder(recorder);
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        for (int offset = 0; offset < stream.length; offset += chunk) {
+            buffer.put(stream, offset, Math.min(chunk, stream.length - offset));
+            buffer.flip();
+            decoder.decode(buffer);
+            buffer.compact();
+        }
+        assertEquals(0, buffer.position(), "bytes left undecoded");
+        return recorder.events;
+    }
+
+    private static byte[] text(String body) {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(2 + 4 + bytes.length)
+                .put(Protocol.FRAME_MARKER).put(Protocol.FRAME_TEXT).putInt(bytes.length).put(bytes).array();
+    }
+
+    private static byte[] tagged(long requestId, String body) {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(2 + 8 + 4 + bytes.length)
+                .put(Protocol.FRAME_MARKER).put(Protocol.FRAME_TAGGED_TEXT).putLong(requestId).putInt(bytes.length).put(bytes)
+                .array();
+    }
+
+    private static byte[] file(String name, String body) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(2 + 4 + nameBytes.length + 4 + bytes.length)
+                .put(Protocol.FRAME_MARKER).put(Protocol.FRAME_FILE).putInt(nameBytes.length).put(nameBytes)
+                .putInt(bytes.length).put(bytes).array();
+    }
+
+    private static byte[] deflatedText(String body) {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        Deflater deflater = new Deflater();
+        deflater.setInput(bytes);
+        deflater.finish();
+        byte[] compressed = new byte[bytes.length + 64];
+        int length = deflater.deflate(compressed);
+        deflater.end();
+        return ByteBuffer.allocate(2 + 4 + 4 + length)
+                .put(Protocol.FRAME_MARKER).put(Protocol.FRAME_DEFLATE_TEXT).putInt(bytes.length).putInt(length)
+                .put(compressed, 0, length).array();
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) out.writeBytes(part);
+        return out.toByteArray();
+    }
+
+    @Test
+    void framesSplitAtEveryByteDecodeLikeWholeOnes() throws IOException {
+        byte[] stream = concat(text("hello"), tagged(42, "answer"), file("a.csv", "1,2\n3,4\n"), text(""));
+        List<String> expected = List.of(
+                "text 5 -1", "text end hello",
+                "text 6 42", "text end answer",
+                "file a.csv 8", "file end 1,2\n3,4\n",
+                "text 0 -1", "text end ");
+
+        assertEquals(expected, decode(stream, stream.length));
+        for (int chunk = 1; chunk < 16; chunk++) {
+            assertEquals(expected, decode(stream, chunk), "reads of " + chunk + " bytes");
+        }
+    }
+
+    @Test
+    void deflatedBodyIsInflatedAcrossReads() throws IOException {
+        String body = "row\t1\n".repeat(20_000);
+        List<String> expected = List.of("text " + body.length() + " -1", "text end " + body);
+
+        assertEquals(expected, decode(deflatedText(body), 7));
+        assertEquals(expected, decode(deflatedText(body), 4096));
+    }
+
+    @Test
+    void resumedFileStartsAtItsOffset() throws IOException {
+        byte[] name = "big.bin".getBytes(StandardCharsets.UTF_8);
+        byte[] stream = ByteBuffer.allocate(2 + 4 + name.length + 8 + 8 + 3)
+                .put(Protocol.FRAME_MARKER).put(Protocol.FRAME_FILE_RESUME).putInt(name.length).put(name)
+                .putLong(10).putLong(7).put("xyz".getBytes(StandardCharsets.UTF_8)).array();
+
+        assertEquals(List.of("resume big.bin 10 7", "file end xyz"), decode(stream, 5));
+    }
+
+    @Test
+    void loginResponseWithCapabilitiesWaitsForItsLastByte() throws IOException {
+        Recorder recorder = new Recorder();
+        FrameDecoder decoder = new FrameDecoder(recorder);
+        decoder.expectLoginResponse();
+
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        buffer.put(Protocol.LOGIN_OK_WITH_CAPABILITIES).putInt(500).flip();
+        decoder.decode(buffer);
+        assertEquals(List.of(), recorder.events);
+
+        buffer.compact().put((byte) 5).flip();
+        decoder.decode(buffer);
+        assertEquals(List.of("login 3 500 5"), recorder.events);
+    }
+
+    @Test
+    void unframedTextTakesTheWholeRead() throws IOException {
+        byte[] stream = "plain answer".getBytes(StandardCharsets.UTF_8);
+        assertEquals(List.of("text -1 -1", "text end plain answer"), decode(stream, stream.length));
+    }
+
+    @Test
+    void impossibleNameSizeIsRejected() {
+        byte[] stream = ByteBuffer.allocate(2 + 4)
+                .put(Protocol.FRAME_MARKER).put(Protocol.FRAME_FILE).putInt(Integer.MAX_VALUE).array();
+        assertThrows(IOException.class, () -> decode(stream, stream.length));
+    }
+
+    @Test
+    void resumeOffsetPastTheSizeIsRejected() {
+        byte[] name = "f".getBytes(StandardCharsets.UTF_8);
+        byte[] stream = ByteBuffer.allocate(2 + 4 + name.length + 8 + 8)
+                .put(Protocol.FRAME_MARKER).put(Protocol.FRAME_FILE_RESUME).putInt(name.length).put(name)
+                .putLong(4).putLong(5).array();
+        assertThrows(IOException.class, () -> decode(stream, stream.length));
+    }
+}
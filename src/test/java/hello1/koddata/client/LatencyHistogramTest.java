@@ -0,0 +1,71 @@
+package hello1.koddata.client;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LatencyHistogramTest {
+
+    @Test
+    void smallValuesHaveABucketEach() {
+        for (int value = 0; value < 64; value++) {
+            assertEquals(value, LatencyHistogram.upperBound(LatencyHistogram.index(value)));
+        }
+    }
+
+    @Test
+    void bucketsTileTheRangeWithoutGaps() {
+        long previousUpper = -1;
+        for (int index = 0; index < LatencyHistogram.index(Long.MAX_VALUE); index++) {
+            long upper = LatencyHistogram.upperBound(index);
+            assertEquals(index, LatencyHistogram.index(previousUpper + 1), "first value of bucket " + index);
+            assertEquals(index, LatencyHistogram.index(upper), "last value of bucket " + index);
+            assertEquals(index + 1, LatencyHistogram.index(upper + 1), "value after bucket " + index);
+            previousUpper = upper;
+        }
+        assertEquals(Long.MAX_VALUE, LatencyHistogram.upperBound(LatencyHistogram.index(Long.MAX_VALUE)));
+    }
+
+    @Test
+    void bucketsAreWithinThreePercent() {
+        for (long value = 1; value > 0 && value < Long.MAX_VALUE / 3; value = value * 3 + 1) {
+            long upper = LatencyHistogram.upperBound(LatencyHistogram.index(value));
+            assertTrue(upper >= value && upper - value <= value / 32, value + " reported as " + upper);
+        }
+    }
+
+    @Test
+    void percentilesAreCappedAtTheMax() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i * 1000L);
+        }
+        histogram.record(-5); // clamped to 0
+
+        assertEquals(101, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(0));
+        assertEquals(100_000, histogram.getPercentile(100));
+        long median = histogram.getPercentile(50);
+        assertTrue(median >= 50_000 && median <= 51_000 * 33 / 32, "median " + median);
+    }
+
+    @Test
+    void addMergesCountsAndMax() {
+        LatencyHistogram a = new LatencyHistogram();
+        LatencyHistogram b = new LatencyHistogram();
+        a.record(10);
+        b.record(20);
+        b.record(5_000_000);
+        a.add(b);
+
+        assertEquals(3, a.getCount());
+        assertEquals(5_000_000, a.getMax());
+        assertEquals(10, a.getPercentile(1));
+        assertEquals((10 + 20 + 5_000_000) / 3.0, a.getMean(), 1e-9);
+
+        a.reset();
+        assertEquals(0, a.getCount());
+        assertEquals(0, a.getPercentile(99));
+    }
+}
@@ -0,0 +1,75 @@
+package hello1.koddata.client;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ResultCacheTest {
+
+    private final ResultCache cache = new ResultCache(1 << 20, 1 << 20, 60_000);
+
+    @AfterEach
+    void close() {
+        cache.close();
+    }
+
+    @Test
+    void answerToAReadSentBeforeAnInvalidationIsNotStored() {
+        long generation = cache.generation();
+        cache.invalidate(); // a write went out while the read was in flight
+        cache.put("1:select a", "old", generation);
+        assertNull(cache.get("1:select a"));
+
+        cache.put("1:select a", "new", cache.generation());
+        assertEquals("new", cache.get("1:select a"));
+    }
+
+    @Test
+    void invalidateDropsMemoryAndDiskEntries() {
+        ResultCache small = new ResultCache(200, 1 << 20, 60_000);
+        try {
+            small.put("1:select a", "a".repeat(40), small.generation());
+            small.put("1:select b", "b".repeat(40), small.generation()); // pushes a to disk
+            assertEquals("a".repeat(40), small.get("1:select a"));
+            assertTrue(small.getReport().contains("(1 from disk)"));
+
+            small.invalidate();
+            assertNull(small.get("1:select a"));
+            assertNull(small.get("1:select b"));
+        } finally {
+            small.close();
+        }
+    }
+
+    @Test
+    void answerArrivingAfterCloseIsDropped() {
+        cache.close();
+        cache.put("1:select a", "late", cache.generation());
+        assertNull(cache.get("1:select a"));
+    }
+
+    @Test
+    void expiredEntriesMiss() {
+        cache.setTtlMillis(0);
+        cache.put("1:select a", "a", cache.generation());
+        assertNull(cache.get("1:select a"));
+    }
+
+    @Test
+    void normalizeKeepsQuotedWhitespace() {
+        assertEquals("select * from t where a = 'x  y'", ResultCache.normalize("  select *\tfrom t\n where a = 'x  y' ; "));
+        assertEquals("get \"a\\\" ;\"", ResultCache.normalize("get   \"a\\\" ;\";"));
+    }
+
+    @Test
+    void onlyReadVerbsAreReadOnly() {
+        assertTrue(ResultCache.isReadOnly("SELECT * from t"));
+        assertTrue(ResultCache.isReadOnly("count"));
+        assertFalse(ResultCache.isReadOnly("selection"));
+        assertFalse(ResultCache.isReadOnly("delete from t"));
+    }
+}
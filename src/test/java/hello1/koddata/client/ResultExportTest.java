@@ -0,0 +1,94 @@
+package hello1.koddata.client;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ResultExportTest {
+
+    @TempDir
+    Path directory;
+
+    private final List<String> messages = new ArrayList<>();
+
+    private ResultExport export(String name, ResultExport.Format format, long rotateBytes) throws IOException {
+        return new ResultExport(directory.resolve(name), format, rotateBytes, messages::add);
+    }
+
+    private static void write(ResultExport export, String text) {
+        export.write(ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    // Rows of a binary file, -1 if it has no end group
+    private static int binaryRows(Path file) throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file));
+        data.position(5); // magic and version
+        int rows = 0;
+        while (data.remaining() >= 4) {
+            int groupRows = data.getInt();
+            if (groupRows == 0) return data.hasRemaining() ? -2 : rows;
+            int columns = data.getInt();
+            for (int c = 0; c < columns; c++) {
+                data.get(); // encoding
+                int length = data.getInt();
+                data.position(data.position() + length);
+            }
+            rows += groupRows;
+        }
+        return -1;
+    }
+
+    @Test
+    void csvQuotesFieldsAndFlushesTheLastRowOfACompleteResult() throws IOException {
+        ResultExport export = export("out.csv", ResultExport.Format.CSV, 0);
+        write(export, "a\tb,c\n1\t\"x\"\r\n2\t");
+        write(export, "y");
+        export.close(true);
+
+        assertEquals("a,\"b,c\"\r\n1,\"\"\"x\"\"\"\r\n2,y\r\n", Files.readString(directory.resolve("out.csv")));
+        assertTrue(messages.get(0).startsWith("Exported 3 rows"), messages.get(0));
+    }
+
+    @Test
+    void cutOffCsvDropsThePartialRow() throws IOException {
+        ResultExport export = export("out.csv", ResultExport.Format.CSV, 0);
+        write(export, "1\ta\n2\tb\n3\tpart");
+        export.close(false);
+
+        assertEquals("1,a\r\n2,b\r\n", Files.readString(directory.resolve("out.csv")));
+        assertTrue(messages.get(0).contains("partial last row was dropped"), messages.get(0));
+    }
+
+    @Test
+    void binaryEndGroupOnlyMarksCompleteResults() throws IOException {
+        ResultExport complete = export("complete.kdc", ResultExport.Format.BINARY, 0);
+        write(complete, "1\ta\n-2\tb\n");
+        complete.close(true);
+        assertEquals(2, binaryRows(directory.resolve("complete.kdc")));
+
+        ResultExport cutOff = export("cut.kdc", ResultExport.Format.BINARY, 0);
+        write(cutOff, "1\ta\n-2\tb\n3\tpa");
+        cutOff.close(false);
+        assertEquals(-1, binaryRows(directory.resolve("cut.kdc")));
+    }
+
+    @Test
+    void rotationStartsNumberedFilesAtRowBoundaries() throws IOException {
+        ResultExport export = export("out.csv", ResultExport.Format.CSV, 1);
+        write(export, "1\n2\n3\n");
+        export.close(true);
+
+        assertEquals("1\r\n", Files.readString(directory.resolve("out-0001.csv")));
+        assertEquals("3\r\n", Files.readString(directory.resolve("out-0003.csv")));
+    }
+}
@@ -0,0 +1,98 @@
+package hello1.koddata.client;
+
+import org.jline.utils.AttributedString;
+import org.jline.utils.AttributedStyle;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class SyntaxHighlighterTest {
+
+    private static final AttributedStyle STRING = AttributedStyle.DEFAULT.foreground(AttributedStyle.RED);
+    private static final AttributedStyle NUMBER = AttributedStyle.DEFAULT.foreground(AttributedStyle.CYAN);
+    private static final AttributedStyle VARNAME = AttributedStyle.DEFAULT.foreground(AttributedStyle.YELLOW);
+    private static final AttributedStyle KEYWORD = AttributedStyle.BOLD.foreground(AttributedStyle.GREEN);
+
+    private static final List<String> LINES = List.of(
+            "select * from t where a = 'x y' and b = 3.14;",
+            "consult \"it's\" $name 'a\\'b' 12ab x1 1.2.3;",
+            "echo 'unclosed and \"half\" closed",
+            "put $v\"q\" $w'r' 7;",
+            "a \"b c\" 'd \"e' f\" g");
+
+    // One letter per character: s string, n number, v variable, k keyword, '.' plain
+    private static String kinds(AttributedString styled) {
+        StringBuilder out = new StringBuilder();
+        for (int i = 0; i < styled.length(); i++) {
+            AttributedStyle style = styled.styleAt(i);
+            out.append(style.equals(STRING) ? 's' : style.equals(NUMBER) ? 'n' : style.equals(VARNAME) ? 'v'
+                    : style.equals(KEYWORD) ? 'k' : '.');
+        }
+        return out.toString();
+    }
+
+    private static String kinds(String line) {
+        return kinds(new SyntaxHighlighter().highlight(null, line));
+    }
+
+    @Test
+    void tokensGetTheirStyles() {
+        assertEquals("kkkkkk.vvvvv.sssss.nn.nnnn", kinds("select $name 'a b' 12 3.14"));
+    }
+
+    @Test
+    void unclosedQuoteIsNotAString() {
+        assertEquals("kkkk.kkkkk.kkk.kk", kinds("echo 'open and on"));
+        assertEquals("kkkk.sssssssssssss", kinds("echo 'open and on'"));
+    }
+
+    @Test
+    void escapedQuoteDoesNotCloseTheString() {
+        assertEquals("ssssssss", kinds("'a\\'b c'"));
+    }
+
+    // 1.2.3 lexes as 1.2 and 3, the dot before the 3 is a word boundary
+    @Test
+    void numbersNeedWordBoundaries() {
+        assertEquals("kkkk.kk.nnn.n.nn", kinds("12ab x1 1.2.3 42"));
+    }
+
+    // the run holds a string, so neither the '$v' before it nor the run as a whole is styled
+    @Test
+    void stringInsideAVariableTakesPriority() {
+        assertEquals("kkk...sss", kinds("put $v\"q\""));
+    }
+
+    // The highlighter keeps runs between calls, typing a line must end up styled as if it was pasted at once
+    @Test
+    void typingMatchesAFreshHighlighter() {
+        for (String line : LINES) {
+            SyntaxHighlighter typed = new SyntaxHighlighter();
+            for (int i = 0; i <= line.length(); i++) {
+                String prefix = line.substring(0, i);
+                assertEquals(kinds(prefix), kinds(typed.highlight(null, prefix)), "typed \"" + prefix + "\"");
+            }
+            for (int i = line.length(); i >= 0; i--) {
+                String prefix = line.substring(0, i);
+                assertEquals(kinds(prefix), kinds(typed.highlight(null, prefix)), "deleted back to \"" + prefix + "\"");
+            }
+        }
+    }
+
+    @Test
+    void editingInsideTheLineMatchesAFreshHighlighter() {
+        for (String line : LINES) {
+            SyntaxHighlighter edited = new SyntaxHighlighter();
+            edited.highlight(null, line);
+            for (int i = 0; i <= line.length(); i++) {
+                for (String insert : List.of("'", "\"", " ", "9", "$")) {
+                    String changed = line.substring(0, i) + insert + line.substring(i);
+                    assertEquals(kinds(changed), kinds(edited.highlight(null, changed)), "edited \"" + changed + "\"");
+                    assertEquals(kinds(line), kinds(edited.highlight(null, line)), "restored \"" + line + "\"");
+                }
+            }
+        }
+    }
+}